@@ -0,0 +1,33 @@
+import java.net.DatagramPacket;
+import java.util.Random;
+
+import stp.bench.ChecksumWorkload;
+
+public class ChecksumWorkloadImpl implements ChecksumWorkload {
+    private STPChecksum checksum;
+    private DatagramPacket segment;
+
+    @Override
+    public void setup(String algorithm, int payloadSize) {
+        checksum = STPChecksum.create(STPChecksum.forName(algorithm));
+        if (checksum.getAlgorithm() != STPChecksum.forName(algorithm)) {
+            throw new IllegalStateException(algorithm + " isn't available on this JVM");
+        }
+
+        byte[] frame = new byte[STPHeader.HEADER_SIZE + payloadSize];
+        new Random(1).nextBytes(frame);
+        new STPHeader().wrap(frame).write(false, false, false, 4242, 1717, 0);
+        segment = new DatagramPacket(frame, frame.length);
+        checksum.sign(segment);
+    }
+
+    @Override
+    public long sign() {
+        return checksum.sign(segment);
+    }
+
+    @Override
+    public boolean verify() {
+        return checksum.verify(segment);
+    }
+}
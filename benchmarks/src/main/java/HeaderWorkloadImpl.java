@@ -0,0 +1,32 @@
+import stp.bench.HeaderWorkload;
+
+public class HeaderWorkloadImpl implements HeaderWorkload {
+    private final byte[] frame = new byte[STPHeader.HEADER_SIZE];
+    private final STPHeader header = new STPHeader().wrap(frame);
+
+    public HeaderWorkloadImpl() {
+        header.write(true, false, false, 4242, 1717, 0xCAFEL);
+    }
+
+    @Override
+    public int write(int sequenceNum) {
+        header.write(false, false, false, sequenceNum, 1717, 0);
+        return frame[3];
+    }
+
+    @Override
+    public long read() {
+        return header.getSequenceNum() + header.getAckNum() + header.getFlags() + header.getChecksum();
+    }
+
+    @Override
+    public byte[] encodeObject(int sequenceNum) {
+        return new STP(false, false, false, sequenceNum, 1717, 0).getHeader();
+    }
+
+    @Override
+    public long decodeObject() {
+        STP stp = new STP(frame);
+        return stp.getSequenceNum() + stp.getAckNum() + stp.getChecksum();
+    }
+}
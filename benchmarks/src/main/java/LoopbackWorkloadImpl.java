@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import stp.bench.LoopbackWorkload;
+
+/**
+ * Runs a SenderFlow against a single-shot ReceiverServer, the same pair Sender and Receiver run, with the receiving
+ * end on its own thread. Their progress messages are thrown away so that printing doesn't dominate the timing.
+ */
+public class LoopbackWorkloadImpl implements LoopbackWorkload {
+    private static final int LOG_CAPACITY = 1 << 16;
+    private static final int GAMMA = 4;
+
+    private File directory;
+    private File input;
+    private File output;
+    private MappedFile mappedFile;
+    private EventLog senderLog;
+    private EventLog receiverLog;
+    private int mss;
+    private int mws;
+    private double pDrop;
+    private PrintStream stdout;
+    private int transfers;
+
+    @Override
+    public void setup(long fileSize, int mss, int mws, double pDrop, String congestionControl) throws IOException {
+        // Read once when SenderFlow is first loaded, which is in this benchmark's own JVM
+        System.setProperty("stp.cc", congestionControl);
+        this.mss = mss;
+        this.mws = mws;
+        this.pDrop = pDrop;
+
+        directory = File.createTempFile("stp-bench", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Can't create " + directory);
+        }
+        input = new File(directory, "input.bin");
+        output = new File(directory, "output.bin");
+        byte[] block = new byte[1 << 16];
+        Random random = new Random(1);
+        try (OutputStream out = new FileOutputStream(input)) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+
+        mappedFile = new MappedFile(input);
+        senderLog = new EventLog(new File(directory, "Sender_log.bin").getPath(), LOG_CAPACITY);
+        receiverLog = new EventLog(new File(directory, "Receiver_log.bin").getPath(), LOG_CAPACITY);
+
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @Override
+    public long transfer() throws Exception {
+        final ReceiverServer server = new ReceiverServer(0, output.getPath(), 0, 1, receiverLog);
+        final Exception[] failure = new Exception[1];
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        }, "stp-bench-receiver");
+        receiver.start();
+
+        String[] args = {"127.0.0.1", String.valueOf(server.getLocalPort()), input.getPath(), String.valueOf(mws),
+                String.valueOf(mss), String.valueOf(GAMMA), String.valueOf(pDrop), "0", "0", "0", "0", "0", "0",
+                String.valueOf(++transfers)};
+        SenderFlow flow = new SenderFlow(args, mappedFile, 0, 1, transfers, 0, mappedFile.length(), senderLog,
+                System.currentTimeMillis(), new STPMetrics("Sender"));
+        flow.run();
+        receiver.join();
+
+        if (!flow.isCompleted() || failure[0] != null || output.length() != mappedFile.length()) {
+            throw new IllegalStateException("Transfer failed", failure[0]);
+        }
+        return output.length();
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        System.setOut(stdout);
+        senderLog.close();
+        receiverLog.close();
+        mappedFile.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,17 @@
+import java.util.Random;
+
+import stp.bench.PldWorkload;
+
+public class PldWorkloadImpl implements PldWorkload {
+    private PLD pld;
+
+    @Override
+    public void setup(double pDrop, double pDuplicate, double pCorrupt, double pOrder, double pDelay, long seed) {
+        pld = new PLD(pDrop, pDuplicate, pCorrupt, pOrder, pDelay, new Random(seed));
+    }
+
+    @Override
+    public int decide() {
+        return pld.decide();
+    }
+}
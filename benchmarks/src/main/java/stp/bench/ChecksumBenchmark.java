@@ -0,0 +1,49 @@
+package stp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Signing a data segment on the sender and verifying it on the receiver, for each checksum and segment size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+    @Param({"crc32", "crc32c"})
+    public String algorithm;
+
+    @Param({"64", "1000", "8192"})
+    public int payloadSize;
+
+    private final ChecksumWorkload workload = Workloads.load(ChecksumWorkload.class);
+
+    @Setup
+    public void setup() {
+        workload.setup(algorithm, payloadSize);
+    }
+
+    @Benchmark
+    public long sign() {
+        return workload.sign();
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return workload.verify();
+    }
+}
@@ -0,0 +1,16 @@
+package stp.bench;
+
+/**
+ * Checksumming a data segment in place, the way the sender signs it and the receiver checks it.
+ */
+public interface ChecksumWorkload {
+    /**
+     * @param algorithm crc32 or crc32c
+     * @param payloadSize bytes of data in the segment
+     */
+    void setup(String algorithm, int payloadSize);
+
+    long sign();
+
+    boolean verify();
+}
@@ -0,0 +1,47 @@
+package stp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding an STP header in place with the STPHeader flyweight, against building an STP object.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderBenchmark {
+    private final HeaderWorkload workload = Workloads.load(HeaderWorkload.class);
+    private int sequenceNum;
+
+    @Benchmark
+    public int writeInPlace() {
+        return workload.write(sequenceNum++);
+    }
+
+    @Benchmark
+    public long readInPlace() {
+        return workload.read();
+    }
+
+    @Benchmark
+    public byte[] encodeObject() {
+        return workload.encodeObject(sequenceNum++);
+    }
+
+    @Benchmark
+    public long decodeObject() {
+        return workload.decodeObject();
+    }
+}
@@ -0,0 +1,27 @@
+package stp.bench;
+
+/**
+ * Encoding and decoding an STP header, in place with the STPHeader flyweight and as an STP object.
+ */
+public interface HeaderWorkload {
+    /**
+     * Writes a data segment header in place.
+     * @return a byte of the frame, so the write isn't optimised away
+     */
+    int write(int sequenceNum);
+
+    /**
+     * @return the fields of the header read in place, combined
+     */
+    long read();
+
+    /**
+     * @return the header encoded by a new STP object
+     */
+    byte[] encodeObject(int sequenceNum);
+
+    /**
+     * @return the fields of the header decoded into a new STP object, combined
+     */
+    long decodeObject();
+}
@@ -0,0 +1,60 @@
+package stp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole transfer from sender to receiver over loopback, handshake to teardown, across segment sizes, windows and
+ * loss. Each combination runs in its own JVM, since the congestion controller is picked when the sender is loaded.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopbackBenchmark {
+    @Param({"4194304"})
+    public long fileSize;
+
+    @Param({"500", "1400", "8000"})
+    public int mss;
+
+    @Param({"50000", "500000"})
+    public int mws;
+
+    @Param({"0", "0.02"})
+    public double pDrop;
+
+    @Param({"reno"})
+    public String congestionControl;
+
+    private final LoopbackWorkload workload = Workloads.load(LoopbackWorkload.class);
+
+    @Setup
+    public void setup() throws Exception {
+        workload.setup(fileSize, mss, mws, pDrop, congestionControl);
+    }
+
+    @Benchmark
+    public long transfer() throws Exception {
+        return workload.transfer();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+}
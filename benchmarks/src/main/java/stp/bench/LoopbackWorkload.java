@@ -0,0 +1,19 @@
+package stp.bench;
+
+/**
+ * A whole transfer of a file from a sender to a receiver over loopback, both in this JVM.
+ */
+public interface LoopbackWorkload {
+    /**
+     * Writes a file of random data to send, and opens the event logs.
+     */
+    void setup(long fileSize, int mss, int mws, double pDrop, String congestionControl) throws Exception;
+
+    /**
+     * Sends the file and waits for the receiver to write it out.
+     * @return the number of bytes received
+     */
+    long transfer() throws Exception;
+
+    void tearDown() throws Exception;
+}
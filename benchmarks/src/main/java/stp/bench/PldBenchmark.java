@@ -0,0 +1,42 @@
+package stp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the PLD deciding what happens to a segment. With no loss every probability is drawn against, the worst
+ * case.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PldBenchmark {
+    @Param({"0", "0.1"})
+    public double probability;
+
+    private final PldWorkload workload = Workloads.load(PldWorkload.class);
+
+    @Setup
+    public void setup() {
+        workload.setup(probability, probability, probability, probability, probability, 300);
+    }
+
+    @Benchmark
+    public int decide() {
+        return workload.decide();
+    }
+}
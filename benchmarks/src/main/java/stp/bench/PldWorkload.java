@@ -0,0 +1,10 @@
+package stp.bench;
+
+/**
+ * The PLD's decision of what happens to a segment.
+ */
+public interface PldWorkload {
+    void setup(double pDrop, double pDuplicate, double pCorrupt, double pOrder, double pDelay, long seed);
+
+    int decide();
+}
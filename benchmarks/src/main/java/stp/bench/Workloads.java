@@ -0,0 +1,22 @@
+package stp.bench;
+
+/**
+ * The STP classes are all in the default package, which JMH won't put benchmarks in and which classes in a named
+ * package can't refer to. So each benchmark times a workload interface from this package, implemented next to the
+ * STP classes in the default package and loaded here by name. Each call site only ever sees the one implementation,
+ * so the JIT inlines straight through the interface.
+ */
+final class Workloads {
+    private Workloads() {
+    }
+
+    static <T> T load(Class<T> type) {
+        // HeaderWorkload is implemented by HeaderWorkloadImpl and so on
+        String implementation = type.getSimpleName() + "Impl";
+        try {
+            return type.cast(Class.forName(implementation).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't load " + implementation, e);
+        }
+    }
+}
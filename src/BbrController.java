@@ -0,0 +1,249 @@
+/**
+ * A BBR style congestion controller. Rather than reacting to loss it builds a model of the path from two estimates:
+ * the bottleneck bandwidth, the highest delivery rate seen over the last few round trips, and the round trip
+ * propagation time, the lowest RTT seen over the last ten seconds. The window is kept at a small multiple of their
+ * product (the bandwidth-delay product) and sending is paced at a multiple of the bottleneck bandwidth.
+ *
+ * - STARTUP doubles the sending rate every round trip until the bandwidth estimate stops growing.
+ * - DRAIN slows down until the queue that STARTUP built is gone.
+ * - PROBE_BW cycles the pacing rate above and below the estimate to find more bandwidth and then drain any queue.
+ * - PROBE_RTT briefly shrinks the window every ten seconds to refresh the minimum RTT.
+ *
+ * Delivery rate samples come from remembering, for every segment sent, how many bytes had been delivered and when.
+ */
+public class BbrController extends CongestionController {
+    private static final double STARTUP_GAIN = 2.885;
+    private static final double[] PROBE_BW_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+    private static final double WINDOW_GAIN = 2;
+    private static final int BANDWIDTH_ROUNDS = 10;
+    private static final long MIN_RTT_WINDOW = 10000;
+    private static final long PROBE_RTT_TIME = 200;
+    private static final int MIN_WINDOW_SEGMENTS = 4;
+    private static final int MAX_UNMODELLED_SEGMENTS = 64;  // The most the window grows to before there is a model
+
+    private enum State { STARTUP, DRAIN, PROBE_BW, PROBE_RTT }
+
+    private State state;
+    private double pacingGain;
+    private int cycleIndex;
+    private long cycleStart;
+
+    // Bandwidth estimate, a max filter over the last BANDWIDTH_ROUNDS round trips (bytes per second)
+    private final long[] roundMaxRate = new long[BANDWIDTH_ROUNDS];
+    private long round;
+    private long nextRoundDelivered;
+    private long bottleneckBandwidth;
+
+    // Startup ends when the bandwidth estimate stops growing by 25% for three rounds
+    private long fullBandwidth;
+    private int fullBandwidthRounds;
+
+    // Round trip propagation time estimate
+    private long minRtt;
+    private long minRttStamp;
+    private long probeRttDone;
+
+    // What had been delivered, and when, as each segment was sent, kept in a growable ring in sending order
+    private long delivered;
+    private long deliveredTime;
+    private long[] sentEnd = new long[64];
+    private long[] sentTime = new long[64];
+    private long[] sentDelivered = new long[64];
+    private long[] sentDeliveredTime = new long[64];
+    private int sentHead;
+    private int sentCount;
+
+    public BbrController(int mss) {
+        super(mss);
+        state = State.STARTUP;
+        pacingGain = STARTUP_GAIN;
+        minRtt = Long.MAX_VALUE;
+    }
+
+    @Override
+    public String getName() {
+        return "bbr";
+    }
+
+    @Override
+    public void onPacketSent(long now, long endOffset, int bytes, boolean retransmission) {
+        if (deliveredTime == 0) {
+            deliveredTime = now;
+        }
+        if (retransmission) {
+            return;
+        }
+
+        if (sentCount == sentEnd.length) {
+            grow();
+        }
+        int slot = (sentHead + sentCount) % sentEnd.length;
+        sentEnd[slot] = endOffset;
+        sentTime[slot] = now;
+        sentDelivered[slot] = delivered;
+        sentDeliveredTime[slot] = deliveredTime;
+        sentCount++;
+    }
+
+    @Override
+    protected void ack(long now, long ackOffset, long newlyAcked, long rtt, long inFlight) {
+        delivered += newlyAcked;
+        deliveredTime = now;
+
+        // Find the most recently sent segment this ACK covers to take a delivery rate sample from
+        long packetDelivered = -1;
+        long packetDeliveredTime = 0;
+        long packetSentTime = 0;
+        while (sentCount > 0 && sentEnd[sentHead] <= ackOffset) {
+            packetDelivered = sentDelivered[sentHead];
+            packetDeliveredTime = sentDeliveredTime[sentHead];
+            packetSentTime = sentTime[sentHead];
+            sentHead = (sentHead + 1) % sentEnd.length;
+            sentCount--;
+        }
+
+        // Times are in whole ms, so anything quicker than that, such as a LAN or loopback, counts as 1ms rather than
+        // leaving the model without a sample
+        if (rtt >= 0) {
+            rtt = Math.max(rtt, 1);
+            if (rtt <= minRtt || now - minRttStamp > MIN_RTT_WINDOW) {
+                minRtt = rtt;
+                minRttStamp = now;
+            }
+        }
+
+        if (packetDelivered >= 0) {
+            // The rate is limited by the slower of the send and the ACK rates over the packet's lifetime
+            long interval = Math.max(Math.max(now - packetDeliveredTime, now - packetSentTime), 1);
+            updateBandwidth((delivered - packetDelivered) * 1000 / interval, packetDelivered);
+        }
+
+        updateState(now, inFlight);
+        updateWindow();
+    }
+
+    @Override
+    protected void fastRetransmit(long now, long inFlight) {
+        // The model isn't driven by loss, so a single loss doesn't change the window
+    }
+
+    @Override
+    protected boolean usesFastRecovery() {
+        // Keep the model fed with every ACK while the sender repairs the loss
+        return false;
+    }
+
+    @Override
+    protected void timeout(long now, long inFlight) {
+        // Everything in flight is presumed lost, start again from the minimum until ACK's rebuild the model
+        window = MIN_WINDOW_SEGMENTS * (long) mss;
+        sentCount = 0;
+    }
+
+    @Override
+    public long getPacingRate() {
+        return (long) (pacingGain * bottleneckBandwidth);
+    }
+
+    private void updateBandwidth(long rate, long packetDelivered) {
+        // A new round starts once a segment sent after the last round started has been delivered
+        if (packetDelivered >= nextRoundDelivered) {
+            round++;
+            nextRoundDelivered = delivered;
+            roundMaxRate[(int) (round % BANDWIDTH_ROUNDS)] = 0;
+            checkFullBandwidth();
+        }
+
+        int slot = (int) (round % BANDWIDTH_ROUNDS);
+        roundMaxRate[slot] = Math.max(roundMaxRate[slot], rate);
+
+        long max = 0;
+        for (long roundRate : roundMaxRate) {
+            max = Math.max(max, roundRate);
+        }
+        bottleneckBandwidth = max;
+    }
+
+    private void checkFullBandwidth() {
+        if (state != State.STARTUP) {
+            return;
+        }
+        if (bottleneckBandwidth >= fullBandwidth * 5 / 4) {
+            fullBandwidth = bottleneckBandwidth;
+            fullBandwidthRounds = 0;
+        } else if (++fullBandwidthRounds >= 3) {
+            state = State.DRAIN;
+            pacingGain = 1 / STARTUP_GAIN;
+        }
+    }
+
+    private void updateState(long now, long inFlight) {
+        if (state == State.DRAIN && inFlight <= bandwidthDelayProduct()) {
+            enterProbeBandwidth(now);
+        }
+
+        if (state == State.PROBE_BW && minRtt != Long.MAX_VALUE && now - cycleStart > minRtt) {
+            // Move on to the next gain in the cycle each round trip
+            cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+            cycleStart = now;
+            pacingGain = PROBE_BW_GAINS[cycleIndex];
+        }
+
+        if (state != State.PROBE_RTT && minRtt != Long.MAX_VALUE && now - minRttStamp > MIN_RTT_WINDOW) {
+            // The minimum RTT hasn't been seen for a while, shrink the window to drain the queue and measure it again
+            state = State.PROBE_RTT;
+            pacingGain = 1;
+            probeRttDone = now + PROBE_RTT_TIME;
+        } else if (state == State.PROBE_RTT && now >= probeRttDone) {
+            minRttStamp = now;
+            enterProbeBandwidth(now);
+        }
+    }
+
+    private void enterProbeBandwidth(long now) {
+        state = State.PROBE_BW;
+        cycleIndex = 0;
+        cycleStart = now;
+        pacingGain = PROBE_BW_GAINS[cycleIndex];
+    }
+
+    private void updateWindow() {
+        long minimum = MIN_WINDOW_SEGMENTS * (long) mss;
+        if (state == State.PROBE_RTT) {
+            window = minimum;
+        } else if (bottleneckBandwidth > 0 && minRtt != Long.MAX_VALUE) {
+            double gain = state == State.STARTUP ? STARTUP_GAIN : WINDOW_GAIN;
+            window = Math.max((long) (gain * bandwidthDelayProduct()), minimum);
+        } else {
+            // No model yet so grow as slow start would, but only so far without one
+            window = Math.max(Math.min(window + mss, MAX_UNMODELLED_SEGMENTS * (long) mss), window);
+        }
+    }
+
+    private long bandwidthDelayProduct() {
+        if (minRtt == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return bottleneckBandwidth * minRtt / 1000;
+    }
+
+    private void grow() {
+        int capacity = sentEnd.length * 2;
+        long[] newEnd = new long[capacity];
+        long[] newTime = new long[capacity];
+        long[] newDelivered = new long[capacity];
+        long[] newDeliveredTime = new long[capacity];
+        for (int i = 0; i < sentCount; i++) {
+            int slot = (sentHead + i) % sentEnd.length;
+            newEnd[i] = sentEnd[slot];
+            newTime[i] = sentTime[slot];
+            newDelivered[i] = sentDelivered[slot];
+            newDeliveredTime[i] = sentDeliveredTime[slot];
+        }
+        sentEnd = newEnd;
+        sentTime = newTime;
+        sentDelivered = newDelivered;
+        sentDeliveredTime = newDeliveredTime;
+        sentHead = 0;
+    }
+}
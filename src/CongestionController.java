@@ -0,0 +1,291 @@
+/**
+ * Decides how many bytes the sender may have in flight. The sender tells the controller about every segment it sends,
+ * every ACK, duplicate ACK, fast retransmit and timeout, and never lets more than getWindow() bytes (or the MWS,
+ * whichever is smaller) go unacknowledged.
+ *
+ * Controllers are chosen at startup by name with create(). Every controller keeps the same set of counters so that
+ * they can be compared against each other.
+ *
+ * Fast recovery is the same for every controller (NewReno, RFC 6582). Once the sender fast retransmits, the
+ * controller sets its reduced window and the window is inflated by a segment for each duplicate ACK, since each one
+ * means a segment has left the network, so new data keeps flowing while the lost segment is resent. A partial ACK
+ * deflates it by the data it acknowledged, and the sender calls onRecoveryEnd() once everything that was in flight
+ * when recovery started has been acknowledged. The controller's own ack() isn't called during recovery.
+ * Controllers that don't react to loss can opt out with usesFastRecovery().
+ */
+public abstract class CongestionController {
+    private static final int INITIAL_WINDOW_SEGMENTS = Integer.getInteger("stp.initialWindow", 4);
+
+    protected int mss;                  // The segment size, which changes if the sender probes for the best one
+    protected long window;              // The congestion window in bytes
+    protected long slowStartThreshold;  // Below this the window grows exponentially
+    private boolean recovering;         // Between a fast retransmit and the ACK of everything in flight at the time
+    private long inflation;             // Added to the window during recovery for the segments that have left
+
+    // Counters
+    private long acks;
+    private long bytesAcked;
+    private long duplicateAcks;
+    private long fastRetransmits;
+    private long partialAcks;
+    private long timeouts;
+    private long maxWindow;
+
+    protected CongestionController(int mss) {
+        this.mss = mss;
+        this.window = INITIAL_WINDOW_SEGMENTS * (long) mss;
+        this.slowStartThreshold = Long.MAX_VALUE;
+        this.maxWindow = window;
+    }
+
+    /**
+     * Creates a controller by name: reno, cubic, bbr, or none to be limited by the MWS alone.
+     * @param name
+     * @param mss
+     * @return
+     */
+    public static CongestionController create(String name, int mss) {
+        if (name.equalsIgnoreCase("reno")) {
+            return new RenoController(mss);
+        } else if (name.equalsIgnoreCase("cubic")) {
+            return new CubicController(mss);
+        } else if (name.equalsIgnoreCase("bbr")) {
+            return new BbrController(mss);
+        } else if (name.equalsIgnoreCase("none")) {
+            return new Unlimited(mss);
+        }
+        throw new IllegalArgumentException("Unknown congestion controller: " + name);
+    }
+
+    public abstract String getName();
+
+    /**
+     * Called when the sender moves to another segment size. The window stays the same number of bytes, but grows,
+     * bottoms out and restarts after a timeout in segments of the new size from then on.
+     * @param mss
+     */
+    public final void setMss(int mss) {
+        int previousMss = this.mss;
+        this.mss = mss;
+        // Never too small to send one of the new segments
+        window = Math.max(window, mss);
+        mssChanged(previousMss);
+    }
+
+    /**
+     * Called by setMss() for controllers that keep anything counted in segments, which they now need to convert.
+     * @param previousMss
+     */
+    protected void mssChanged(int previousMss) {
+    }
+
+    /**
+     * Called whenever a data segment is sent.
+     * @param now
+     * @param endOffset the offset just past the end of the segment's data
+     * @param bytes
+     * @param retransmission
+     */
+    public void onPacketSent(long now, long endOffset, int bytes, boolean retransmission) {
+    }
+
+    /**
+     * Called when an ACK moves the cumulative ACK point forward.
+     * @param now
+     * @param ackOffset the new cumulative ACK point as an offset into the file
+     * @param newlyAcked the number of bytes this ACK acknowledged
+     * @param rtt a round trip time sample in ms, or -1 if this ACK didn't give one
+     * @param inFlight bytes still unacknowledged after this ACK
+     */
+    protected abstract void ack(long now, long ackOffset, long newlyAcked, long rtt, long inFlight);
+
+    /**
+     * Called when a third duplicate ACK signals that a segment was lost.
+     * @param now
+     * @param inFlight
+     */
+    protected abstract void fastRetransmit(long now, long inFlight);
+
+    /**
+     * Called when the retransmission timer expires.
+     * @param now
+     * @param inFlight
+     */
+    protected abstract void timeout(long now, long inFlight);
+
+    /**
+     * Called when an ACK moves the cumulative ACK point forward. During recovery this is a partial ACK.
+     */
+    public final void onAck(long now, long ackOffset, long newlyAcked, long rtt, long inFlight) {
+        acks++;
+        bytesAcked += newlyAcked;
+        if (recovering) {
+            // Deflate by what was acknowledged, but add a segment back for the retransmission the sender is sending
+            partialAcks++;
+            inflation = Math.max(inflation - newlyAcked, 0) + mss;
+        } else {
+            ack(now, ackOffset, newlyAcked, rtt, inFlight);
+        }
+        maxWindow = Math.max(maxWindow, window);
+    }
+
+    public final void onDuplicateAck(long now) {
+        duplicateAcks++;
+        if (recovering) {
+            inflation += mss;
+        }
+    }
+
+    /**
+     * Called when a third duplicate ACK starts fast recovery.
+     */
+    public final void onFastRetransmit(long now, long inFlight) {
+        fastRetransmits++;
+        fastRetransmit(now, inFlight);
+        // The three duplicate ACK's that got us here each mean a segment has left the network
+        if (usesFastRecovery()) {
+            recovering = true;
+            inflation = 3L * mss;
+        }
+    }
+
+    /**
+     * Called when an ACK covers everything that was in flight when recovery started. The inflation is dropped, and
+     * the window is kept from allowing more than a segment's burst beyond what is still in flight.
+     * @param now
+     * @param inFlight bytes still unacknowledged after the ACK
+     */
+    public final void onRecoveryEnd(long now, long inFlight) {
+        if (recovering) {
+            recovering = false;
+            inflation = 0;
+            window = Math.min(window, Math.max(inFlight, mss) + mss);
+        }
+    }
+
+    public final void onTimeout(long now, long inFlight) {
+        timeouts++;
+        recovering = false;
+        inflation = 0;
+        timeout(now, inFlight);
+    }
+
+    /**
+     * @return false if the controller keeps getting ack() calls through recovery and manages the window itself
+     */
+    protected boolean usesFastRecovery() {
+        return true;
+    }
+
+    public long getWindow() {
+        return window > Long.MAX_VALUE - inflation ? Long.MAX_VALUE : window + inflation;
+    }
+
+    /**
+     * @return the window without the inflation fast recovery adds to it, for counting against an estimate of what is
+     * still in the network that already leaves out the segments the duplicate ACK's were for
+     */
+    public long getUninflatedWindow() {
+        return window;
+    }
+
+    public boolean isRecovering() {
+        return recovering;
+    }
+
+    public long getSlowStartThreshold() {
+        return slowStartThreshold;
+    }
+
+    /**
+     * @return the rate in bytes per second that segments should be paced at, or 0 to send as fast as the window allows
+     */
+    public long getPacingRate() {
+        return 0;
+    }
+
+    public long getAcks() {
+        return acks;
+    }
+
+    public long getBytesAcked() {
+        return bytesAcked;
+    }
+
+    public long getDuplicateAcks() {
+        return duplicateAcks;
+    }
+
+    public long getFastRetransmits() {
+        return fastRetransmits;
+    }
+
+    public long getPartialAcks() {
+        return partialAcks;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getMaxWindow() {
+        return maxWindow;
+    }
+
+    /**
+     * Grows the window the way slow start does, by the number of bytes acknowledged but at most two segments per ACK.
+     * @param newlyAcked
+     * @return the number of acknowledged bytes left over once the window reached the slow start threshold
+     */
+    protected long slowStart(long newlyAcked) {
+        // Up to two segments per ACK, so a receiver delaying its ACK's doesn't halve the growth
+        long increase = Math.min(newlyAcked, 2L * mss);
+        long room = slowStartThreshold - window;
+        if (increase <= room) {
+            window += increase;
+            return 0;
+        }
+        window += Math.max(room, 0);
+        return newlyAcked - Math.max(room, 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: window=%d ssthresh=%s maxWindow=%d acks=%d bytesAcked=%d dupAcks=%d " +
+                        "fastRetransmits=%d partialAcks=%d timeouts=%d", getName(), window,
+                slowStartThreshold == Long.MAX_VALUE ? "inf" : String.valueOf(slowStartThreshold), maxWindow, acks,
+                bytesAcked, duplicateAcks, fastRetransmits, partialAcks, timeouts);
+    }
+
+    /**
+     * No congestion control, leaving the MWS as the only limit.
+     */
+    private static class Unlimited extends CongestionController {
+        Unlimited(int mss) {
+            super(mss);
+            window = Long.MAX_VALUE;
+        }
+
+        @Override
+        public String getName() {
+            return "none";
+        }
+
+        @Override
+        protected void ack(long now, long ackOffset, long newlyAcked, long rtt, long inFlight) {
+        }
+
+        @Override
+        protected void fastRetransmit(long now, long inFlight) {
+        }
+
+        @Override
+        protected void timeout(long now, long inFlight) {
+        }
+
+        @Override
+        protected boolean usesFastRecovery() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * CUBIC congestion control (RFC 8312). After a loss the window grows along a cubic curve centred on the window at
+ * which the loss happened, so it climbs quickly back towards that point, levels off around it and then probes beyond
+ * it. The growth depends on the time since the loss rather than on the number of ACK's, which suits long round trip
+ * times. When Reno would grow faster (short round trips, small windows) the window follows Reno instead.
+ */
+public class CubicController extends CongestionController {
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double windowMax;       // The window in segments just before the last reduction
+    private double lastWindowMax;   // windowMax before the last reduction, for fast convergence
+    private long epochStart;        // When the current growth curve began, 0 if it hasn't yet
+    private double k;               // Seconds from epochStart until the curve reaches windowMax
+    private double renoWindow;      // The window in segments that Reno would have by now
+    private long minRtt;            // The smallest round trip time seen in ms
+    private double growth;          // Fractions of a segment of growth carried between ACK's
+
+    public CubicController(int mss) {
+        super(mss);
+        minRtt = Long.MAX_VALUE;
+    }
+
+    @Override
+    public String getName() {
+        return "cubic";
+    }
+
+    @Override
+    protected void ack(long now, long ackOffset, long newlyAcked, long rtt, long inFlight) {
+        if (rtt > 0) {
+            minRtt = Math.min(minRtt, rtt);
+        }
+
+        if (window < slowStartThreshold) {
+            newlyAcked = slowStart(newlyAcked);
+            if (newlyAcked == 0) {
+                return;
+            }
+        }
+
+        double segments = window / (double) mss;
+        double acked = newlyAcked / (double) mss;
+        if (epochStart == 0) {
+            // Start a new growth curve
+            epochStart = now;
+            if (segments < windowMax) {
+                k = Math.cbrt(windowMax * (1 - BETA) / C);
+            } else {
+                k = 0;
+                windowMax = segments;
+            }
+            renoWindow = segments;
+        }
+
+        // Where the cubic curve says the window should be one round trip from now
+        double rttSeconds = minRtt == Long.MAX_VALUE ? 0 : minRtt / 1000.0;
+        double t = (now - epochStart) / 1000.0 + rttSeconds;
+        double target = C * Math.pow(t - k, 3) + windowMax;
+
+        // Where Reno would be, to stay friendly to it
+        renoWindow += 3 * (1 - BETA) / (1 + BETA) * acked / segments;
+        if (renoWindow > target) {
+            target = renoWindow;
+        }
+
+        if (target > segments) {
+            growth += (target - segments) / segments * acked;
+        } else {
+            // Still on the flat part of the curve, so grow very slowly
+            growth += acked / (100 * segments);
+        }
+
+        if (growth >= 1) {
+            long whole = (long) growth;
+            window += whole * mss;
+            growth -= whole;
+        }
+    }
+
+    @Override
+    protected void mssChanged(int previousMss) {
+        // The curve is counted in segments, so convert it to the new size to keep it at the same number of bytes
+        double scale = previousMss / (double) mss;
+        windowMax *= scale;
+        lastWindowMax *= scale;
+        renoWindow *= scale;
+    }
+
+    @Override
+    protected void fastRetransmit(long now, long inFlight) {
+        reduce();
+    }
+
+    @Override
+    protected void timeout(long now, long inFlight) {
+        reduce();
+        window = mss;
+    }
+
+    private void reduce() {
+        double segments = window / (double) mss;
+
+        // Fast convergence, if the window never got back to where it was last time then let other flows have some
+        if (segments < lastWindowMax) {
+            lastWindowMax = segments;
+            windowMax = segments * (1 + BETA) / 2;
+        } else {
+            lastWindowMax = segments;
+            windowMax = segments;
+        }
+
+        window = Math.max((long) (window * BETA), 2L * mss);
+        slowStartThreshold = window;
+        epochStart = 0;
+        growth = 0;
+    }
+}
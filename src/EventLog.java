@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records packet events as fixed size binary records. Events are written into a preallocated ring by whichever thread
+ * sent or received the packet, and a background thread drains the ring out to a binary log file. Recording an event
+ * is a handful of array stores, so logging no longer holds up the send and receive paths. EventLogFormatter turns the
+ * binary log back into the columnar text log.
+ *
+ * Each record on disk is RECORD_SIZE bytes:
+ *   Event type (1 Byte), Flags (1 Byte), Unused (2 Bytes), Bytes of data (4 Bytes), Time in ms (8 Bytes),
+ *   Sequence Number (8 Bytes), Acknowledgement Number (8 Bytes)
+ */
+public class EventLog {
+    public static final int SND = 0;
+    public static final int RCV = 1;
+    public static final int DROP = 2;
+    public static final int DUP = 3;
+    public static final int CORR = 4;
+    public static final int RORD = 5;
+    public static final int DELY = 6;
+    public static final int RXT = 7;
+
+    // The name each type of event is given in the text log
+    static final String[] EVENT_NAMES = {"snd ", "rcv ", "drop", "dup ", "corr", "rord", "dely", "RXT "};
+
+    static final int RECORD_SIZE = 32;
+
+    private final int capacity;
+    private final int mask;
+    private final byte[] types;
+    private final byte[] flags;
+    private final int[] bytes;
+    private final long[] times;
+    private final long[] sequenceNums;
+    private final long[] ackNums;
+    private final AtomicLongArray published;    // The sequence of the event last published into each slot
+    private final AtomicLong claimed;           // The next sequence to be claimed by a producer
+    private final AtomicLong consumed;          // The next sequence to be drained by the writer thread
+
+    private final FileChannel channel;
+    private final ByteBuffer output;
+    private final Thread writerThread;
+    private volatile boolean closing;
+    private boolean failed;                     // Set if the log file can't be written, after which events are dropped
+
+    /**
+     * @param fileName the binary log file
+     * @param capacity the number of events the ring holds, rounded up to a power of two
+     * @throws IOException
+     */
+    public EventLog(String fileName, int capacity) throws IOException {
+        this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.types = new byte[this.capacity];
+        this.flags = new byte[this.capacity];
+        this.bytes = new int[this.capacity];
+        this.times = new long[this.capacity];
+        this.sequenceNums = new long[this.capacity];
+        this.ackNums = new long[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+        this.claimed = new AtomicLong();
+        this.consumed = new AtomicLong();
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        file.setLength(0);
+        this.channel = file.getChannel();
+        this.output = ByteBuffer.allocateDirect(RECORD_SIZE * 1024);
+
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "stp-event-log");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Records an event. If the writer thread has fallen a whole ring behind, this waits for it to catch up rather than
+     * losing the event.
+     */
+    public void record(int type, long time, int flagBits, long sequenceNum, int dataBytes, long ackNum) {
+        long sequence = claimed.getAndIncrement();
+        while (sequence - consumed.get() >= capacity) {
+            Thread.yield();
+        }
+
+        int slot = (int) (sequence & mask);
+        types[slot] = (byte) type;
+        flags[slot] = (byte) flagBits;
+        bytes[slot] = dataBytes;
+        times[slot] = time;
+        sequenceNums[slot] = sequenceNum;
+        ackNums[slot] = ackNum;
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * Waits for every recorded event to be written out and closes the file.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void drain() {
+        while (true) {
+            long next = consumed.get();
+            int slot = (int) (next & mask);
+            if (published.get(slot) == next) {
+                if (output.remaining() < RECORD_SIZE) {
+                    flushOutput();
+                }
+                output.put(types[slot]);
+                output.put(flags[slot]);
+                output.putShort((short) 0);
+                output.putInt(bytes[slot]);
+                output.putLong(times[slot]);
+                output.putLong(sequenceNums[slot]);
+                output.putLong(ackNums[slot]);
+                consumed.lazySet(next + 1);
+            } else if (closing && next == claimed.get()) {
+                // Everything that was recorded has been drained
+                flushOutput();
+                return;
+            } else {
+                // Nothing to do, so write out what we have and wait a moment for more
+                flushOutput();
+                LockSupport.parkNanos(1000000);
+            }
+        }
+    }
+
+    private void flushOutput() {
+        output.flip();
+        try {
+            while (output.hasRemaining() && !failed) {
+                channel.write(output);
+            }
+        } catch (IOException e) {
+            // Keep draining so that producers never block on a full ring, but stop trying to write
+            System.out.println("Failed to write to the event log, further events are dropped");
+            e.printStackTrace();
+            failed = true;
+        }
+        output.clear();
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Renders a binary log written by EventLog as the columnar text log. Sender and Receiver render their own log when
+ * they finish, and it can also be run on its own against any binary log:
+ *
+ *   java EventLogFormatter Sender_log.bin Sender_log.txt
+ */
+public class EventLogFormatter {
+    private static final int ACK_FLAG = STPHeader.ACK_FLAG;
+    private static final int SYN_FLAG = STPHeader.SYN_FLAG;
+    private static final int FIN_FLAG = STPHeader.FIN_FLAG;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Required arguments: binary_log text_log");
+            return;
+        }
+        render(args[0], args[1]);
+    }
+
+    /**
+     * Reads every event from the binary log and writes it out as a line of the text log.
+     * @param binaryLog
+     * @param textLog
+     * @throws IOException
+     */
+    public static void render(String binaryLog, String textLog) throws IOException {
+        FileChannel channel = new RandomAccessFile(binaryLog, "r").getChannel();
+        PrintWriter writer = new PrintWriter(textLog, "UTF-8");
+        ByteBuffer input = ByteBuffer.allocate(EventLog.RECORD_SIZE * 1024);
+
+        // Print out the headers for each column into the log
+        writer.print("evnt");
+        writer.print(String.format("%7s", "time"));
+        writer.print(String.format("%7s", "flag"));
+        writer.print(String.format("%17s", "seq num"));
+        writer.print(String.format("%7s", "bytes"));
+        writer.println(String.format("%17s", "ack num"));
+        writer.println("");
+
+        while (channel.read(input) != -1 || input.position() > 0) {
+            input.flip();
+            while (input.remaining() >= EventLog.RECORD_SIZE) {
+                int type = input.get();
+                int flags = input.get();
+                input.getShort();
+                int bytes = input.getInt();
+                long time = input.getLong();
+                long sequenceNum = input.getLong();
+                long ackNum = input.getLong();
+                writer.print(EventLog.EVENT_NAMES[type]);
+                writer.print(String.format("%7s", time));
+                writer.print(String.format("%7s", flagName(flags)));
+                writer.print(String.format("%17s", sequenceNum));
+                writer.print(String.format("%7s", bytes));
+                writer.println(String.format("%17s", ackNum));
+            }
+
+            // Keep any partial record for the next read, a partial record at the very end of the file is dropped
+            input.compact();
+            if (input.position() > 0 && channel.position() == channel.size()) {
+                break;
+            }
+        }
+
+        writer.close();
+        channel.close();
+    }
+
+    private static String flagName(int flags) {
+        boolean isAck = (flags & (1 << ACK_FLAG)) != 0;
+        boolean isSyn = (flags & (1 << SYN_FLAG)) != 0;
+        boolean isFin = (flags & (1 << FIN_FLAG)) != 0;
+
+        if (isSyn && isAck) {
+            return "SA";
+        } else if (isSyn) {
+            return "S";
+        } else if (isAck) {
+            return "A";
+        } else if (isFin) {
+            return "F";
+        } else {
+            // If nothing else then it is just data
+            return "D";
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.Arrays;
+
+/**
+ * Rebuilds lost data segments from the XOR parity segments a sender sends when FEC is agreed in the handshake, so that
+ * a loss doesn't have to wait a round trip for a retransmission.
+ *
+ * The data is split into blocks of K segments by offset, and each parity segment is the XOR of every segment over a
+ * span of one or more whole blocks, the last segment of the data padded with zeros. The parity carries the length of
+ * its span, so the sender can make the span longer or shorter as the loss rate changes.
+ *
+ * The data itself goes straight on to the file, so rather than keep it the decoder keeps the XOR of every segment of
+ * a block that has arrived so far, and which ones those are. Parity is XOR'd into the first block of its span. Once
+ * every segment of a span but one has arrived and so has its parity, the XOR of the span's blocks is the one that is
+ * missing. Blocks are kept in slots reused as the data moves along, enough to cover the reassembly buffer.
+ */
+public class FecDecoder {
+    public static final int MAX_K = 64;
+    public static final int MAX_SPAN = 16;     // Blocks one parity segment may cover
+
+    private final int k;
+    private final int mss;
+    private final long blockSize;
+    private final Block[] blocks;
+    private final byte[] recovered;
+    private int recoveredLength;
+    private long recoveredOffset;
+    private long lastSpanLength;        // The span of the last parity, to guess what the next one will cover
+
+    /**
+     * @param k segments in a block, no more than MAX_K
+     * @param mss the size of every segment but the last
+     * @param capacity how many bytes past the ACK point data can arrive
+     */
+    public FecDecoder(int k, int mss, long capacity) {
+        this.k = k;
+        this.mss = mss;
+        this.blockSize = (long) k * mss;
+        this.blocks = new Block[(int) Math.min(Math.max(capacity / blockSize + 2, 2 * MAX_SPAN), 1 << 20)];
+        this.recovered = new byte[mss];
+        this.lastSpanLength = blockSize;
+    }
+
+    /**
+     * Notes a data segment that has arrived. Segments that don't start on a segment boundary or are longer than the mss
+     * can't be part of a block and are left out.
+     * @param offset
+     * @param data
+     * @param dataOffset
+     * @param length
+     * @return true if a segment can now be rebuilt, see getRecoveredOffset()
+     */
+    public boolean onData(long offset, byte[] data, int dataOffset, int length) {
+        if (offset % mss != 0 || length > mss || length == 0) {
+            return false;
+        }
+        Block block = block(offset / blockSize, true);
+        if (!add(block, offset, data, dataOffset, length)) {
+            return false;
+        }
+        return block.spanStart >= 0 && recover(block.spanStart);
+    }
+
+    /**
+     * Notes a parity segment that has arrived.
+     * @param start the offset of the first segment of its span
+     * @param spanLength how many bytes of data it covers
+     * @param data the XOR of the span
+     * @param dataOffset
+     * @param length
+     * @return true if a segment can now be rebuilt, see getRecoveredOffset()
+     */
+    public boolean onParity(long start, long spanLength, byte[] data, int dataOffset, int length) {
+        if (start % blockSize != 0 || spanLength <= 0 || spanLength > MAX_SPAN * blockSize || length > mss) {
+            return false;
+        }
+        Block first = block(start / blockSize, true);
+        if (first.parity) {
+            return false;
+        }
+        first.parity = true;
+        first.spanLength = spanLength;
+        xor(first.xor, data, dataOffset, length);
+        for (long index = start / blockSize; index <= (start + spanLength - 1) / blockSize; index++) {
+            block(index, true).spanStart = start;
+        }
+        lastSpanLength = spanLength;
+        return recover(start);
+    }
+
+    /**
+     * @param gap the first byte missing
+     * @param offset a segment that has just arrived past it
+     * @return whether the gap is the only segment missing of those before the one that has just arrived, and no
+     * parity has come for it yet, so parity for it may well be on its way
+     */
+    public boolean awaitingParity(long gap, long offset) {
+        if (offset <= gap || offset - gap >= lastSpanLength) {
+            return false;
+        }
+        Block block = block(gap / blockSize, false);
+        if (block == null || block.spanStart >= 0) {
+            return false;
+        }
+        // Every segment from the gap's to the one that has just arrived, other than the gap's, has to be here
+        for (long segment = gap / mss + 1; segment < offset / mss; segment++) {
+            Block other = block(segment / k, false);
+            if (other == null || (other.mask & (1L << (segment % k))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getMss() {
+        return mss;
+    }
+
+    /**
+     * @return where the segment that has just been rebuilt goes
+     */
+    public long getRecoveredOffset() {
+        return recoveredOffset;
+    }
+
+    public byte[] getRecovered() {
+        return recovered;
+    }
+
+    public int getRecoveredLength() {
+        return recoveredLength;
+    }
+
+    /**
+     * Rebuilds the one segment missing from a span, if only one is and its parity has arrived.
+     */
+    private boolean recover(long start) {
+        Block first = block(start / blockSize, false);
+        if (first == null || !first.parity) {
+            return false;
+        }
+        long end = start + first.spanLength;
+        long missing = -1;
+        for (long segment = start / mss; segment * mss < end; segment++) {
+            Block block = block(segment / k, false);
+            if (block == null || (block.mask & (1L << (segment % k))) == 0) {
+                if (missing >= 0) {
+                    return false;
+                }
+                missing = segment;
+            }
+        }
+        if (missing < 0) {
+            return false;
+        }
+
+        Arrays.fill(recovered, (byte) 0);
+        for (long index = start / blockSize; index <= (end - 1) / blockSize; index++) {
+            Block block = block(index, true);
+            xor(recovered, block.xor, 0, mss);
+        }
+        recoveredOffset = missing * mss;
+        recoveredLength = (int) Math.min(mss, end - recoveredOffset);
+        add(block(missing / k, true), recoveredOffset, recovered, 0, recoveredLength);
+        return true;
+    }
+
+    /**
+     * XOR's a segment into its block, unless it is already there.
+     * @return false if it was already there
+     */
+    private boolean add(Block block, long offset, byte[] data, int dataOffset, int length) {
+        long bit = 1L << ((offset / mss) % k);
+        if ((block.mask & bit) != 0) {
+            return false;
+        }
+        block.mask |= bit;
+        xor(block.xor, data, dataOffset, length);
+        return true;
+    }
+
+    /**
+     * @param index
+     * @param create whether to take over the block's slot if it doesn't have it
+     * @return the block, or null if it doesn't have a slot and create is false
+     */
+    private Block block(long index, boolean create) {
+        int slot = (int) (index % blocks.length);
+        Block block = blocks[slot];
+        if (block != null && block.index == index) {
+            return block;
+        }
+        if (!create) {
+            return null;
+        }
+        if (block == null) {
+            block = new Block(mss);
+            blocks[slot] = block;
+        }
+        block.reset(index);
+        return block;
+    }
+
+    private static void xor(byte[] into, byte[] data, int dataOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            into[i] ^= data[dataOffset + i];
+        }
+    }
+
+    private static class Block {
+        private final byte[] xor;       // Every segment of the block that has arrived XOR'd together
+        private long index = -1;
+        private long mask;              // Which of the block's segments have arrived
+        private long spanStart;         // The start of the span of the parity covering the block, -1 if none yet
+        private long spanLength;        // For the first block of a span, its length
+        private boolean parity;         // Whether the parity of the span starting here has been XOR'd in
+
+        private Block(int mss) {
+            this.xor = new byte[mss];
+        }
+
+        private void reset(long index) {
+            this.index = index;
+            Arrays.fill(xor, (byte) 0);
+            mask = 0;
+            spanStart = -1;
+            spanLength = 0;
+            parity = false;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams received data straight to disk. Data is packed into a small pool of direct buffers which are written out
+ * in the background with positional FileChannel writes, so disk I/O overlaps with the network and memory use stays
+ * constant however large the file is. Contiguous writes are coalesced into the same buffer, and a write that doesn't
+ * follow on from the previous one (an out of order segment) is packed in after it as a new extent with its own
+ * position, so a buffer only fills up with the bytes actually handed to it however out of order they come.
+ *
+ * Every writer's buffers are written out by one small pool of threads shared by all of them, stp.writerThreads of
+ * them, so a server receiving many files at once doesn't have a thread per file. A writer is drained by one pool
+ * thread at a time, which keeps its writes in order, and hands the thread back after a buffer pool's worth so that
+ * the other writers get their turn. When the pool falls behind and every buffer is in use, callers block until one
+ * is written out.
+ *
+ * Positions are relative to the writer's origin in the file, so several writers can each fill their own range of the
+ * same file, such as the stripes of a striped transfer.
+ */
+public class FileSegmentWriter implements ReassemblyBuffer.PositionalSink {
+    /**
+     * How often the file is forced out to the storage device.
+     */
+    public enum FlushPolicy {
+        NONE,       // Leave it to the operating system
+        CLOSE,      // Force once when the file is closed
+        INTERVAL,   // Force after every flushInterval bytes and on close
+        ALWAYS      // Force after every buffer written
+    }
+
+    private final FileChannel channel;
+    private final long origin;          // Where position 0 is in the file
+    private final FlushPolicy flushPolicy;
+    private final long flushInterval;
+    private final int bufferSize;
+    private final int bufferCount;
+    private final BlockingQueue<ByteBuffer> freeBuffers;    // Buffers ready to be filled
+    private final BlockingQueue<PendingWrite> pendingWrites; // Filled buffers waiting to be written out
+    private final AtomicBoolean draining = new AtomicBoolean();  // Whether a pool thread has been given this writer
+    private final Runnable drainTask;
+
+    private ByteBuffer current;         // The buffer currently being filled
+    private long[] extentPositions = new long[16];  // The file position of each extent in the current buffer
+    private int[] extentStarts = new int[16];       // Where each extent starts in the current buffer
+    private int extents;                // How many extents the current buffer holds
+    private long appendPosition;        // Where data handed to deliver() is written
+    private long bytesSinceFlush;       // Only touched while draining
+    private volatile IOException failure;
+
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+            Math.max(Integer.getInteger("stp.writerThreads", 2), 1), new ThreadFactory() {
+                private final AtomicInteger threads = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "stp-file-writer-" + threads.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static class PendingWrite {
+        final ByteBuffer buffer;
+        final long[] positions;         // The file position of each extent in the buffer
+        final int[] starts;             // Where each extent starts in the buffer, it ends where the next starts
+        final CountDownLatch written;   // Otherwise counted down once everything before it is written out
+        final boolean force;            // and forced to the storage device
+
+        PendingWrite(ByteBuffer buffer, long[] positions, int[] starts) {
+            this.buffer = buffer;
+            this.positions = positions;
+            this.starts = starts;
+            this.written = null;
+            this.force = false;
+        }
+
+        PendingWrite(CountDownLatch written, boolean force) {
+            this.buffer = null;
+            this.positions = null;
+            this.starts = null;
+            this.written = written;
+            this.force = force;
+        }
+    }
+
+    public FileSegmentWriter(String fileName, FlushPolicy flushPolicy, long flushInterval, int bufferSize,
+                             int bufferCount) throws IOException {
+        this(fileName, 0, true, flushPolicy, flushInterval, bufferSize, bufferCount);
+    }
+
+    /**
+     * @param fileName
+     * @param origin where in the file position 0 is written
+     * @param truncate whether to empty the file first, false when other writers are filling the rest of it
+     * @param flushPolicy
+     * @param flushInterval
+     * @param bufferSize
+     * @param bufferCount
+     * @throws IOException
+     */
+    public FileSegmentWriter(String fileName, long origin, boolean truncate, FlushPolicy flushPolicy,
+                             long flushInterval, int bufferSize, int bufferCount) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        if (truncate) {
+            file.setLength(0);
+        }
+        this.channel = file.getChannel();
+        this.origin = origin;
+        this.flushPolicy = flushPolicy;
+        this.flushInterval = flushInterval;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        this.pendingWrites = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+
+        this.drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Creates a writer configured from the stp.fsync, stp.fsyncInterval, stp.writeBuffer and stp.writeBuffers system
+     * properties.
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    public static FileSegmentWriter fromSystemProperties(String fileName) throws IOException {
+        return fromSystemProperties(fileName, 0, true);
+    }
+
+    /**
+     * Creates a writer for one range of a file, configured from the system properties.
+     * @param fileName
+     * @param origin where in the file position 0 is written
+     * @param truncate whether to empty the file first
+     * @return
+     * @throws IOException
+     */
+    public static FileSegmentWriter fromSystemProperties(String fileName, long origin, boolean truncate)
+            throws IOException {
+        FlushPolicy policy = FlushPolicy.valueOf(System.getProperty("stp.fsync", "close").toUpperCase());
+        long interval = Long.getLong("stp.fsyncInterval", 64L << 20);
+        int bufferSize = Integer.getInteger("stp.writeBuffer", 256 << 10);
+        int bufferCount = Integer.getInteger("stp.writeBuffers", 16);
+        return new FileSegmentWriter(fileName, origin, truncate, policy, interval, bufferSize, bufferCount);
+    }
+
+    /**
+     * Appends in order data after whatever was last appended.
+     */
+    @Override
+    public void deliver(byte[] data, int offset, int length) throws IOException {
+        write(appendPosition, data, offset, length);
+        appendPosition += length;
+    }
+
+    /**
+     * Writes data at the given position in the file.
+     */
+    @Override
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        checkFailure();
+        while (length > 0) {
+            // Start a new buffer if the current one is full, and a new extent if this doesn't follow on from the last
+            if (current == null || !current.hasRemaining()) {
+                submitCurrent();
+                current = takeFreeBuffer();
+            }
+            if (extents == 0 ||
+                    position != extentPositions[extents - 1] + current.position() - extentStarts[extents - 1]) {
+                startExtent(position);
+            }
+
+            int chunk = Math.min(length, current.remaining());
+            current.put(data, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Writes out everything still buffered, forces the file according to the flush policy and closes it.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        submitCurrent();
+        awaitWritten(flushPolicy != FlushPolicy.NONE);
+        channel.close();
+    }
+
+    /**
+     * Waits until everything handed to the writer so far has been written out and forced to the storage device,
+     * whatever the flush policy.
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        submitCurrent();
+        awaitWritten(true);
+    }
+
+    /**
+     * Waits until everything submitted so far has been written out.
+     * @param force whether to force the file to the storage device too
+     * @throws IOException
+     */
+    private void awaitWritten(boolean force) throws IOException {
+        CountDownLatch written = new CountDownLatch(1);
+        queue(new PendingWrite(written, force));
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing out " + channel, e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * @return how many more bytes can be handed to the writer before it has to wait for the file to catch up
+     */
+    public long getFreeBytes() {
+        long free = (long) freeBuffers.size() * bufferSize;
+        if (current != null) {
+            free += current.remaining();
+        }
+        return free;
+    }
+
+    /**
+     * Notes that what is put in the current buffer from here on goes at the given position in the file.
+     * @param position
+     */
+    private void startExtent(long position) {
+        if (extents == extentPositions.length) {
+            extentPositions = Arrays.copyOf(extentPositions, extents * 2);
+            extentStarts = Arrays.copyOf(extentStarts, extents * 2);
+        }
+        extentPositions[extents] = position;
+        extentStarts[extents] = current.position();
+        extents++;
+    }
+
+    private void submitCurrent() throws IOException {
+        if (current == null) {
+            return;
+        }
+
+        current.flip();
+        PendingWrite pending = new PendingWrite(current, Arrays.copyOf(extentPositions, extents),
+                Arrays.copyOf(extentStarts, extents));
+        extents = 0;
+        current = null;
+        queue(pending);
+    }
+
+    /**
+     * Hands a write to the pool, and the writer to a pool thread unless one already has it.
+     * @param pending
+     * @throws IOException
+     */
+    private void queue(PendingWrite pending) throws IOException {
+        try {
+            pendingWrites.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing a write", e);
+        }
+        if (draining.compareAndSet(false, true)) {
+            WRITERS.execute(drainTask);
+        }
+    }
+
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a write buffer", e);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes out what is queued, run on a pool thread.
+     */
+    private void drain() {
+        for (int i = 0; i < bufferCount; i++) {
+            PendingWrite pending = pendingWrites.poll();
+            if (pending == null) {
+                // Give the writer up, unless more arrived before it was given up
+                draining.set(false);
+                if (pendingWrites.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            write(pending);
+        }
+        // Had its turn, so go to the back of the queue behind the other writers
+        WRITERS.execute(drainTask);
+    }
+
+    private void write(PendingWrite pending) {
+        if (pending.written != null) {
+            try {
+                if (failure == null && pending.force) {
+                    channel.force(false);
+                    bytesSinceFlush = 0;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            pending.written.countDown();
+            return;
+        }
+
+        ByteBuffer buffer = pending.buffer;
+        try {
+            if (failure == null) {
+                int end = buffer.limit();
+                for (int i = 0; i < pending.starts.length; i++) {
+                    buffer.limit(i + 1 < pending.starts.length ? pending.starts[i + 1] : end);
+                    buffer.position(pending.starts[i]);
+                    long position = origin + pending.positions[i];
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+                bytesSinceFlush += end;
+
+                if (flushPolicy == FlushPolicy.ALWAYS ||
+                        (flushPolicy == FlushPolicy.INTERVAL && bytesSinceFlush >= flushInterval)) {
+                    channel.force(false);
+                    bytesSinceFlush = 0;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        // Always hand the buffer back so that a failure can't leave the receiving thread blocked forever
+        buffer.clear();
+        freeBuffers.add(buffer);
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A UDP proxy that sits between senders and a receiver and emulates the link between them in both directions, so that
+ * STP can be run over a slow, long, lossy or congested path on one machine. Unlike the PLD module inside the sender
+ * it treats ACKs the same as data, and can model bandwidth and queueing delay as well as loss.
+ *
+ * Senders send to the emulator's listening port instead of to the receiver. Each sender gets its own socket towards
+ * the receiver, so the receiver still tells senders apart by address, and whatever the receiver sends back on that
+ * socket goes back to that sender. Every sender on one listening port shares that link's two LinkModels, one for
+ * each direction, just as flows share a real bottleneck.
+ *
+ * Any number of links run in one process on one thread. Datagrams waiting to arrive at the far end are held in one
+ * queue ordered by when they are due, and the thread waits on one Selector for datagrams to arrive no longer than
+ * until the next one is due.
+ *
+ * Usage: java LinkEmulator listen_port receiver_host receiver_port [listen_port receiver_host receiver_port ...]
+ *
+ * Each link is configured with the stp.link. properties LinkModel reads, which can be given for every link, for one
+ * direction (stp.link.forward. towards the receiver, stp.link.reverse. back), for one link numbered from 1 in the
+ * order given (stp.link.2.), or for one direction of one link (stp.link.2.reverse.). Random decisions are seeded
+ * from stp.link.seed.
+ */
+public class LinkEmulator {
+    private static final int PACKET_SIZE = 65535;
+    private static final long SEED = Long.getLong("stp.link.seed", 1);
+    private static final long IDLE_TIMEOUT = Long.getLong("stp.link.idleTimeout", 60000);
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final List<Link> links = new ArrayList<>();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private long deliveriesScheduled;       // Orders deliveries due at the same time by when they were scheduled
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args.length % 3 != 0) {
+            System.out.println("Required arguments: listen_port, receiver_host, receiver_port, repeated for each " +
+                    "link");
+            return;
+        }
+
+        final LinkEmulator emulator = new LinkEmulator();
+        for (int i = 0; i < args.length; i += 3) {
+            Link link = emulator.addLink(Integer.parseInt(args[i]),
+                    new InetSocketAddress(args[i + 1], Integer.parseInt(args[i + 2])));
+            System.out.println("Link " + link.number + ": port " + link.getLocalPort() + " to " + link.target);
+        }
+
+        // Runs until the process is stopped, then prints what happened on each link
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                emulator.printSummary();
+            }
+        });
+        emulator.run();
+    }
+
+    public LinkEmulator() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Adds a link, with its models configured from system properties.
+     * @param port the port senders send to, or 0 for any
+     * @param target the receiver
+     * @return
+     * @throws IOException
+     */
+    public Link addLink(int port, InetSocketAddress target) throws IOException {
+        int number = links.size() + 1;
+        String prefix = "stp.link." + number + ".";
+        LinkModel forward = LinkModel.fromSystemProperties(SEED + 2 * number,
+                prefix + "forward.", prefix, "stp.link.forward.");
+        LinkModel reverse = LinkModel.fromSystemProperties(SEED + 2 * number + 1,
+                prefix + "reverse.", prefix, "stp.link.reverse.");
+        return addLink(port, target, forward, reverse);
+    }
+
+    /**
+     * Adds a link.
+     * @param port the port senders send to, or 0 for any
+     * @param target the receiver
+     * @param forward the model of the direction from the senders to the receiver
+     * @param reverse the model of the direction from the receiver back to the senders
+     * @return
+     * @throws IOException
+     */
+    public Link addLink(int port, InetSocketAddress target, LinkModel forward, LinkModel reverse)
+            throws IOException {
+        Link link = new Link(links.size() + 1, target, forward, reverse);
+        link.channel.socket().bind(new InetSocketAddress(port));
+        link.channel.register(selector, SelectionKey.OP_READ, link);
+        links.add(link);
+        return link;
+    }
+
+    /**
+     * Forwards datagrams until the emulator is closed.
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+        try {
+            while (running) {
+                long wait = SWEEP_INTERVAL;
+                Delivery next = deliveries.peek();
+                if (next != null) {
+                    // Round up so as not to wake just before it is due
+                    wait = Math.min((next.time - System.nanoTime() + 999999) / 1000000, wait);
+                }
+                if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof Link) {
+                        receiveFromSenders((Link) key.attachment());
+                    } else {
+                        receiveFromReceiver((Flow) key.attachment());
+                    }
+                }
+
+                deliver(System.nanoTime());
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+        } finally {
+            closeChannels();
+        }
+    }
+
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public List<Link> getLinks() {
+        return links;
+    }
+
+    public void printSummary() {
+        for (Link link : links) {
+            System.out.println(link);
+        }
+    }
+
+    /**
+     * Sends every datagram a link's senders have sent on towards the receiver, through that sender's flow.
+     */
+    private void receiveFromSenders(Link link) throws IOException {
+        while (true) {
+            ByteBuffer buffer = takeBuffer();
+            SocketAddress source = link.channel.receive(buffer);
+            if (source == null) {
+                freeBuffers.add(buffer);
+                return;
+            }
+
+            Flow flow = link.flows.get(source);
+            if (flow == null) {
+                flow = new Flow(link, source);
+                flow.channel.register(selector, SelectionKey.OP_READ, flow);
+                link.flows.put(source, flow);
+            }
+            flow.lastActivity = System.currentTimeMillis();
+            buffer.flip();
+            transmit(link.forward, buffer, flow.channel, link.target);
+        }
+    }
+
+    /**
+     * Sends every datagram the receiver has sent to a flow back towards its sender.
+     */
+    private void receiveFromReceiver(Flow flow) throws IOException {
+        while (true) {
+            ByteBuffer buffer = takeBuffer();
+            if (flow.channel.receive(buffer) == null) {
+                freeBuffers.add(buffer);
+                return;
+            }
+            flow.lastActivity = System.currentTimeMillis();
+            buffer.flip();
+            transmit(flow.link.reverse, buffer, flow.link.channel, flow.sender);
+        }
+    }
+
+    /**
+     * Passes a datagram through a link model, and schedules it to be sent at the far end when it arrives there.
+     */
+    private void transmit(LinkModel model, ByteBuffer buffer, DatagramChannel channel, SocketAddress address) {
+        long now = System.nanoTime();
+        int size = buffer.remaining();
+        long arrival = model.transmit(now, size);
+        if (arrival < 0) {
+            freeBuffers.add(buffer);
+            return;
+        }
+
+        if (model.duplicates()) {
+            // The copy goes through the link in its own right, and may be lost or queued behind the original
+            long again = model.transmit(now, size);
+            if (again >= 0) {
+                ByteBuffer copy = takeBuffer();
+                copy.put(buffer.duplicate()).flip();
+                schedule(again, copy, channel, address);
+            }
+        }
+        if (model.corrupts() && size > 0) {
+            int offset = model.corruptionOffset(size);
+            buffer.put(offset, (byte) ~buffer.get(offset));
+        }
+        schedule(arrival, buffer, channel, address);
+    }
+
+    private void schedule(long time, ByteBuffer buffer, DatagramChannel channel, SocketAddress address) {
+        deliveries.add(new Delivery(time, deliveriesScheduled++, buffer, channel, address));
+    }
+
+    /**
+     * Sends every datagram that has arrived at the far end of its link by now.
+     */
+    private void deliver(long now) {
+        while (!deliveries.isEmpty() && deliveries.peek().time - now <= 0) {
+            Delivery delivery = deliveries.poll();
+            try {
+                // A datagram for a flow swept away while it was in flight, or one the socket has no room for, is lost
+                if (delivery.channel.isOpen()) {
+                    delivery.channel.send(delivery.buffer, delivery.address);
+                }
+            } catch (IOException e) {
+                // The far end has gone away, UDP doesn't care
+            }
+            freeBuffers.add(delivery.buffer);
+        }
+    }
+
+    /**
+     * Closes the flows of senders that haven't been heard from, in either direction, for IDLE_TIMEOUT ms.
+     */
+    private void sweep(long now) {
+        for (Link link : links) {
+            Iterator<Flow> iterator = link.flows.values().iterator();
+            while (iterator.hasNext()) {
+                Flow flow = iterator.next();
+                if (now - flow.lastActivity > IDLE_TIMEOUT) {
+                    iterator.remove();
+                    closeQuietly(flow.channel);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(PACKET_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void closeChannels() throws IOException {
+        for (Link link : links) {
+            for (Flow flow : link.flows.values()) {
+                closeQuietly(flow.channel);
+            }
+            closeQuietly(link.channel);
+        }
+        selector.close();
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A listening port and the receiver it forwards to, with a model for each direction.
+     */
+    public static class Link {
+        private final int number;
+        private final InetSocketAddress target;
+        private final LinkModel forward;
+        private final LinkModel reverse;
+        private final DatagramChannel channel;
+        private final Map<SocketAddress, Flow> flows = new HashMap<>();
+
+        private Link(int number, InetSocketAddress target, LinkModel forward, LinkModel reverse)
+                throws IOException {
+            this.number = number;
+            this.target = target;
+            this.forward = forward;
+            this.reverse = reverse;
+            this.channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+        }
+
+        public int getLocalPort() {
+            return channel.socket().getLocalPort();
+        }
+
+        public LinkModel getForward() {
+            return forward;
+        }
+
+        public LinkModel getReverse() {
+            return reverse;
+        }
+
+        @Override
+        public String toString() {
+            return "Link " + number + " to " + target + "\n  forward: " + forward + "\n  reverse: " + reverse;
+        }
+    }
+
+    /**
+     * One sender on a link, and its own socket towards the receiver.
+     */
+    private static class Flow {
+        private final Link link;
+        private final SocketAddress sender;
+        private final DatagramChannel channel;
+        private long lastActivity;
+
+        private Flow(Link link, SocketAddress sender) throws IOException {
+            this.link = link;
+            this.sender = sender;
+            this.channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(0));
+        }
+    }
+
+    /**
+     * A datagram on its way to the far end of a link.
+     */
+    private static class Delivery implements Comparable<Delivery> {
+        private final long time;            // When it arrives, in ns
+        private final long order;
+        private final ByteBuffer buffer;
+        private final DatagramChannel channel;
+        private final SocketAddress address;
+
+        private Delivery(long time, long order, ByteBuffer buffer, DatagramChannel channel, SocketAddress address) {
+            this.time = time;
+            this.order = order;
+            this.buffer = buffer;
+            this.channel = channel;
+            this.address = address;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            long difference = time - other.time;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return order < other.order ? -1 : order == other.order ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.Random;
+
+/**
+ * One direction of an emulated link: a bottleneck of a given bandwidth with a bounded queue in front of it, a fixed
+ * propagation delay after it, and seeded random loss, duplication, corruption and reordering. The model only does the
+ * arithmetic, working out when each packet would arrive at the far end or that it never does, and LinkEmulator moves
+ * the datagrams.
+ *
+ * The queue is never held as packets. Since the bottleneck sends at a constant rate, the bytes queued at any moment
+ * are how far ahead of now the bottleneck is booked up, times the rate. When the queue is full a packet is dropped
+ * from the tail, or with RED the packet is dropped early with a probability that rises with the average queue
+ * length, so that senders see loss before the queue overflows.
+ *
+ * Every decision is drawn from the one seeded Random in a fixed order, so the same packets through the same model
+ * meet the same fate.
+ */
+public class LinkModel {
+    public static final int DROP_TAIL = 0;
+    public static final int RED = 1;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final double RED_MIN_THRESHOLD = 0.25;   // RED starts dropping at this fraction of the queue
+    private static final double RED_MAX_THRESHOLD = 0.75;   // and drops with MAX_P at this fraction
+    private static final double RED_MAX_P = 0.1;
+    private static final double RED_WEIGHT = 0.002;         // Weight of each sample in the average queue length
+
+    private final long bandwidth;           // Bits per second, 0 for no bottleneck
+    private final long delay;               // One way propagation delay in ns
+    private final long queueCapacity;       // Bytes the bottleneck's queue holds
+    private final int queueDiscipline;
+    private final double pDrop;
+    private final double pDuplicate;
+    private final double pCorrupt;
+    private final double pReorder;
+    private final long reorderDelay;        // Extra ns a reordered packet is held for, so later packets overtake it
+    private final Random random;
+
+    private long busyUntil;                 // When the bottleneck finishes sending what is already queued
+    private double averageQueue;            // RED's moving average of the queue length in bytes
+
+    // Counters
+    private long packets;
+    private long bytes;
+    private long lost;
+    private long queueDrops;
+    private long duplicated;
+    private long corrupted;
+    private long reordered;
+    private long maxQueue;
+
+    /**
+     * @param bandwidth in bits per second, or 0 for no bottleneck and so no queue
+     * @param delay one way propagation delay in ns
+     * @param queueCapacity bytes the bottleneck's queue holds
+     * @param queueDiscipline DROP_TAIL or RED
+     * @param pDrop probability that a packet is lost
+     * @param pDuplicate probability that a packet not lost arrives twice
+     * @param pCorrupt probability that a packet not lost is corrupted
+     * @param pReorder probability that a packet not lost is held back for reorderDelay
+     * @param reorderDelay in ns
+     * @param random
+     */
+    public LinkModel(long bandwidth, long delay, long queueCapacity, int queueDiscipline, double pDrop,
+                     double pDuplicate, double pCorrupt, double pReorder, long reorderDelay, Random random) {
+        this.bandwidth = bandwidth;
+        this.delay = delay;
+        this.queueCapacity = queueCapacity;
+        this.queueDiscipline = queueDiscipline;
+        this.pDrop = pDrop;
+        this.pDuplicate = pDuplicate;
+        this.pCorrupt = pCorrupt;
+        this.pReorder = pReorder;
+        this.reorderDelay = reorderDelay;
+        this.random = random;
+    }
+
+    /**
+     * Creates a model from system properties, each looked up under each prefix in turn and then under stp.link., so
+     * that one link or one direction can override the settings shared by all: bandwidth (bits/s), delay (ms), queue
+     * (bytes), queueDiscipline (droptail or red), pDrop, pDuplicate, pCorrupt, pReorder and reorderDelay (ms).
+     * @param seed
+     * @param prefixes such as stp.link.1.forward., most specific first
+     * @return
+     */
+    public static LinkModel fromSystemProperties(long seed, String... prefixes) {
+        long bandwidth = Long.parseLong(property(prefixes, "bandwidth", "0"));
+        long delay = Long.parseLong(property(prefixes, "delay", "0"));
+        long queue = Long.parseLong(property(prefixes, "queue", "65536"));
+        String discipline = property(prefixes, "queueDiscipline", "droptail");
+        long reorderDelay = Long.parseLong(property(prefixes, "reorderDelay", "10"));
+        return new LinkModel(bandwidth, delay * 1000000, queue,
+                discipline.equalsIgnoreCase("red") ? RED : DROP_TAIL,
+                Double.parseDouble(property(prefixes, "pDrop", "0")),
+                Double.parseDouble(property(prefixes, "pDuplicate", "0")),
+                Double.parseDouble(property(prefixes, "pCorrupt", "0")),
+                Double.parseDouble(property(prefixes, "pReorder", "0")),
+                reorderDelay * 1000000, new Random(seed));
+    }
+
+    private static String property(String[] prefixes, String name, String defaultValue) {
+        for (String prefix : prefixes) {
+            String value = System.getProperty(prefix + name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return System.getProperty("stp.link." + name, defaultValue);
+    }
+
+    /**
+     * Sends a packet into the link.
+     * @param now in ns
+     * @param size bytes in the datagram
+     * @return when it arrives at the far end in ns, or -1 if it is lost or dropped by the queue
+     */
+    public long transmit(long now, int size) {
+        packets++;
+        bytes += size;
+        if (random.nextDouble() < pDrop) {
+            lost++;
+            return -1;
+        }
+
+        long departure = now;
+        if (bandwidth > 0) {
+            long queued = Math.max(busyUntil - now, 0) * bandwidth / 8 / NANOS_PER_SECOND;
+            if (dropFromQueue(queued, size)) {
+                queueDrops++;
+                return -1;
+            }
+            maxQueue = Math.max(maxQueue, queued + size);
+            departure = Math.max(busyUntil, now) + size * 8L * NANOS_PER_SECOND / bandwidth;
+            busyUntil = departure;
+        }
+
+        long arrival = departure + delay;
+        if (random.nextDouble() < pReorder) {
+            reordered++;
+            arrival += reorderDelay;
+        }
+        return arrival;
+    }
+
+    /**
+     * @return whether the packet just transmitted should be corrupted, drawn once per packet that wasn't lost
+     */
+    public boolean corrupts() {
+        if (random.nextDouble() < pCorrupt) {
+            corrupted++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the packet just transmitted should also be sent a second time, drawn once per packet that
+     * wasn't lost
+     */
+    public boolean duplicates() {
+        if (random.nextDouble() < pDuplicate) {
+            duplicated++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Picks which byte of a packet to corrupt.
+     * @param size
+     * @return
+     */
+    public int corruptionOffset(int size) {
+        return random.nextInt(size);
+    }
+
+    private boolean dropFromQueue(long queued, int size) {
+        if (queued + size > queueCapacity) {
+            return true;
+        }
+        if (queueDiscipline != RED) {
+            return false;
+        }
+
+        averageQueue = (1 - RED_WEIGHT) * averageQueue + RED_WEIGHT * queued;
+        double minimum = RED_MIN_THRESHOLD * queueCapacity;
+        double maximum = RED_MAX_THRESHOLD * queueCapacity;
+        if (averageQueue < minimum) {
+            return false;
+        }
+        if (averageQueue >= maximum) {
+            return true;
+        }
+        return random.nextDouble() < RED_MAX_P * (averageQueue - minimum) / (maximum - minimum);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("packets=%d bytes=%d lost=%d queueDrops=%d duplicated=%d corrupted=%d reordered=%d " +
+                "maxQueue=%d", packets, bytes, lost, queueDrops, duplicated, corrupted, reordered, maxQueue);
+    }
+}
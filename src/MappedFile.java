@@ -0,0 +1,196 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A read-only memory mapping of a whole file, of any size. A single mapping is limited to 2 GB so the file is mapped as
+ * a series of chunks. Each chunk runs on past the start of the next by the size of the largest possible segment, which
+ * means any segment lies entirely within the chunk it starts in and can be read or sliced in one go.
+ *
+ * Segments are read from the mapping whenever they are sent or retransmitted, so no copy of the file is ever held on
+ * the heap.
+ *
+ * A MappedFile can also join a series of pieces end to end, such as the files of a session and the headers between
+ * them, to be read as if they were one file. Reads then carry on from one piece into the next.
+ *
+ * A MappedFile must only be read by one thread. Other threads read the same mapping through their own view().
+ */
+public class MappedFile implements Closeable {
+    private static final long CHUNK_SIZE = 1L << 30;
+    private static final int MAX_SEGMENT = 65535;
+
+    private final FileChannel channel;      // null for pieces joined together, which were mapped and closed already
+    private final long length;
+    private final ByteBuffer[] chunks;
+    private final long[] starts;            // Where in the file each chunk starts, and the length after the last
+    private final ByteBuffer[] readers;     // A view of each chunk used for bulk reads, so reading allocates nothing
+    private final boolean owner;            // Whether closing this closes the file, false for views
+
+    public MappedFile(File file) throws IOException {
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.length = channel.size();
+
+        int chunkCount = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        this.chunks = new MappedByteBuffer[chunkCount];
+        this.starts = new long[chunkCount + 1];
+        this.readers = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long start = i * CHUNK_SIZE;
+            long size = Math.min(length - start, CHUNK_SIZE + MAX_SEGMENT);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            starts[i] = start;
+            readers[i] = chunks[i].duplicate();
+        }
+        starts[chunkCount] = length;
+        this.owner = true;
+    }
+
+    private MappedFile(List<ByteBuffer> pieces) {
+        this.channel = null;
+        this.chunks = new ByteBuffer[pieces.size()];
+        this.starts = new long[pieces.size() + 1];
+        this.readers = new ByteBuffer[pieces.size()];
+        long start = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = pieces.get(i).slice();
+            starts[i] = start;
+            readers[i] = chunks[i].duplicate();
+            start += chunks[i].remaining();
+        }
+        starts[chunks.length] = start;
+        this.length = start;
+        this.owner = true;
+    }
+
+    private MappedFile(MappedFile mappedFile) {
+        this.channel = mappedFile.channel;
+        this.length = mappedFile.length;
+        this.chunks = mappedFile.chunks;
+        this.starts = mappedFile.starts;
+        this.readers = new ByteBuffer[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            readers[i] = chunks[i].duplicate();
+        }
+        this.owner = false;
+    }
+
+    /**
+     * Joins pieces end to end into one file, each piece from its position to its limit.
+     * @param pieces
+     * @return
+     */
+    public static MappedFile join(List<ByteBuffer> pieces) {
+        return new MappedFile(pieces);
+    }
+
+    /**
+     * Maps the whole of a file as pieces to join, none bigger than a chunk. The file is closed again straight away,
+     * the mapping lasts until it is garbage collected.
+     * @param file
+     * @param pieces the list the pieces are added to
+     * @throws IOException
+     */
+    public static void map(File file, List<ByteBuffer> pieces) throws IOException {
+        try (FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel()) {
+            long fileLength = fileChannel.size();
+            for (long start = 0; start < fileLength; start += CHUNK_SIZE) {
+                pieces.add(fileChannel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(fileLength - start, CHUNK_SIZE)));
+            }
+        }
+    }
+
+    /**
+     * @return another reader of the same mapping for use by another thread, closing it leaves the file open
+     */
+    public MappedFile view() {
+        return new MappedFile(this);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Copies part of the file into a byte array.
+     * @param offset where in the file to start reading
+     * @param dst
+     * @param dstOffset
+     * @param size no more than the largest possible segment
+     */
+    public void read(long offset, byte[] dst, int dstOffset, int size) {
+        int chunk = chunk(offset);
+        ByteBuffer reader = readers[chunk];
+        reader.position((int) (offset - starts[chunk]));
+        if (channel != null || offset + size <= starts[chunk + 1]) {
+            // A mapped file's chunks run on into the next, so a segment is always within one
+            reader.get(dst, dstOffset, size);
+            return;
+        }
+
+        // Joined pieces don't, so carry on into the next piece with data
+        int read = (int) (starts[chunk + 1] - offset);
+        reader.get(dst, dstOffset, read);
+        read(offset + read, dst, dstOffset + read, size - read);
+    }
+
+    /**
+     * @param offset
+     * @param size no more than the largest possible segment
+     * @return whether the part can be sliced in one go, which it always can for a mapped file, but for pieces joined
+     * together only if it lies within one piece
+     */
+    public boolean isSliceable(long offset, int size) {
+        return channel != null || offset + size <= starts[chunk(offset) + 1];
+    }
+
+    /**
+     * Returns a view of part of the file without copying it. For pieces joined together, the part must lie within one
+     * piece.
+     * @param offset where in the file the view starts
+     * @param size no more than the largest possible segment
+     * @return
+     */
+    public ByteBuffer slice(long offset, int size) {
+        int chunk = chunk(offset);
+        ByteBuffer view = chunks[chunk].duplicate();
+        int position = (int) (offset - starts[chunk]);
+        view.position(position);
+        view.limit(position + size);
+        return view.slice();
+    }
+
+    /**
+     * @param offset
+     * @return the chunk holding the byte at the offset
+     */
+    private int chunk(long offset) {
+        if (channel != null) {
+            return (int) (offset / CHUNK_SIZE);
+        }
+        // The last piece starting at or before the offset, past any empty pieces
+        int low = 0;
+        int high = chunks.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner && channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.Random;
+
+/**
+ * The Packet Loss and Delay module's decision of what happens to each data segment. Each segment is dropped,
+ * duplicated, corrupted, reordered, delayed or sent as normal, with each probability applying only to the segments
+ * that weren't picked by the ones before it, in that order.
+ */
+public class PLD {
+    private final double pDrop;
+    private final double pDuplicate;
+    private final double pCorrupt;
+    private final double pOrder;
+    private final double pDelay;
+    private final Random randomGenerator;
+
+    /**
+     * @param pDrop probability that a segment is dropped
+     * @param pDuplicate probability that a segment not dropped is duped
+     * @param pCorrupt probability that a segment not dropped/duped is corrupted
+     * @param pOrder probability that a segment not dropped/duped/corrupted is reordered
+     * @param pDelay probability that a segment not dropped/dup/corpt/reordered is delayed
+     * @param randomGenerator
+     */
+    public PLD(double pDrop, double pDuplicate, double pCorrupt, double pOrder, double pDelay,
+               Random randomGenerator) {
+        this.pDrop = pDrop;
+        this.pDuplicate = pDuplicate;
+        this.pCorrupt = pCorrupt;
+        this.pOrder = pOrder;
+        this.pDelay = pDelay;
+        this.randomGenerator = randomGenerator;
+    }
+
+    /**
+     * Decides what happens to the next segment.
+     * @return the EventLog event for it: SND, DROP, DUP, CORR, RORD or DELY
+     */
+    public int decide() {
+        if (randomGenerator.nextDouble() <= pDrop) {
+            return EventLog.DROP;
+        }
+        if (randomGenerator.nextDouble() <= pDuplicate) {
+            return EventLog.DUP;
+        }
+        if (randomGenerator.nextDouble() <= pCorrupt) {
+            return EventLog.CORR;
+        }
+        if (randomGenerator.nextDouble() <= pOrder) {
+            return EventLog.RORD;
+        }
+        if (randomGenerator.nextDouble() <= pDelay) {
+            return EventLog.DELY;
+        }
+        return EventLog.SND;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * A sorted set of disjoint, non-adjacent [start, end) byte ranges. Adding a range merges it with any range it overlaps
+ * or touches, so the set stays as small as the number of holes between the ranges.
+ */
+public class RangeSet {
+    private long[] starts;
+    private long[] ends;
+    private int count;
+
+    public RangeSet() {
+        this(8);
+    }
+
+    public RangeSet(int initialCapacity) {
+        starts = new long[Math.max(initialCapacity, 1)];
+        ends = new long[Math.max(initialCapacity, 1)];
+        count = 0;
+    }
+
+    /**
+     * Adds the range [start, end), merging it with any ranges that it overlaps or touches.
+     * @param start
+     * @param end
+     */
+    public void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        // Find the first range that ends at or after the new start, since that is the first one we could merge with
+        int first = firstEndingAtOrAfter(start);
+
+        // Find the range after the last one we merge with
+        int last = first;
+        while (last < count && starts[last] <= end) {
+            start = Math.min(start, starts[last]);
+            end = Math.max(end, ends[last]);
+            last++;
+        }
+
+        int merged = last - first;
+        if (merged == 0) {
+            // Nothing to merge with so open up a slot at first
+            ensureCapacity(count + 1);
+            System.arraycopy(starts, first, starts, first + 1, count - first);
+            System.arraycopy(ends, first, ends, first + 1, count - first);
+            count++;
+        } else if (merged > 1) {
+            // Collapse the merged ranges down into the slot at first
+            System.arraycopy(starts, last, starts, first + 1, count - last);
+            System.arraycopy(ends, last, ends, first + 1, count - last);
+            count -= merged - 1;
+        }
+        starts[first] = start;
+        ends[first] = end;
+    }
+
+    /**
+     * Drops everything below the given point, trimming a range that straddles it.
+     * @param point
+     */
+    public void removeBelow(long point) {
+        int first = firstEndingAtOrAfter(point + 1);
+        if (first > 0) {
+            System.arraycopy(starts, first, starts, 0, count - first);
+            System.arraycopy(ends, first, ends, 0, count - first);
+            count -= first;
+        }
+        if (count > 0 && starts[0] < point) {
+            starts[0] = point;
+        }
+    }
+
+    /**
+     * Checks whether every byte of [start, end) is in the set.
+     * @param start
+     * @param end
+     * @return
+     */
+    public boolean contains(long start, long end) {
+        int i = firstEndingAtOrAfter(end);
+        return i < count && starts[i] <= start;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getStart(int i) {
+        return starts[i];
+    }
+
+    public long getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * The total number of bytes covered by the set.
+     * @return
+     */
+    public long coveredBytes() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += ends[i] - starts[i];
+        }
+        return total;
+    }
+
+    private int firstEndingAtOrAfter(long point) {
+        // Binary search over the ends, which are sorted since the ranges are disjoint
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] < point) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > starts.length) {
+            int newCapacity = Math.max(capacity, starts.length * 2);
+            long[] newStarts = new long[newCapacity];
+            long[] newEnds = new long[newCapacity];
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(ends, 0, newEnds, 0, count);
+            starts = newStarts;
+            ends = newEnds;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+
+/**
+ * Puts received segments back into order. Segments are keyed by their byte offset from the start of the transfer and
+ * the cumulative ACK point is tracked incrementally:
+ *
+ * - A segment that lands exactly on the ACK point is handed straight to the sink from the datagram it arrived in.
+ * - A segment beyond the ACK point is copied once into a bounded ring at its byte offset and its range is noted.
+ * - When a gap fills, the run of buffered bytes now touching the ACK point is handed to the sink from the ring and the
+ *   ACK point jumps to the end of the run, so the work per byte delivered is constant.
+ *
+ * When the sink can write at arbitrary positions (a file), out of order data is written straight to its offset instead
+ * of being held in the ring, and only its range is remembered.
+ *
+ * Anything further than the ring's capacity past the ACK point is dropped and left for the sender to retransmit.
+ */
+public class ReassemblyBuffer {
+    /**
+     * Where in-order data is delivered to.
+     */
+    public interface Sink {
+        void deliver(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /**
+     * A sink that can also accept data at any offset, so out of order data never needs to be held in memory.
+     */
+    public interface PositionalSink extends Sink {
+        void write(long offset, byte[] data, int dataOffset, int length) throws IOException;
+    }
+
+    private final byte[] ring;          // Out of order data, ring[head] holds the byte at the ACK point
+    private final int capacity;
+    private final RangeSet buffered;    // Ranges of offsets above the ACK point held in the ring or the sink
+    private final Sink sink;
+    private final PositionalSink positionalSink;    // The sink if it takes positional writes, otherwise null
+
+    private long ackPoint;              // Offset of the first byte that has not been delivered
+    private int head;                   // Ring index of the byte at the ACK point
+
+    public ReassemblyBuffer(int capacity, Sink sink) {
+        this.capacity = capacity;
+        this.buffered = new RangeSet();
+        this.sink = sink;
+        this.positionalSink = sink instanceof PositionalSink ? (PositionalSink) sink : null;
+
+        // Only a sink that can't take positional writes needs somewhere to hold out of order data
+        this.ring = positionalSink == null ? new byte[capacity] : null;
+        this.ackPoint = 0;
+        this.head = 0;
+    }
+
+    /**
+     * Accepts a segment's payload that starts at the given byte offset of the transfer.
+     * @param offset byte offset of the first byte of data within the transfer
+     * @param data
+     * @param dataOffset where the payload starts in data
+     * @param length
+     * @return true if the segment advanced the ACK point
+     * @throws IOException if the sink fails
+     */
+    public boolean offer(long offset, byte[] data, int dataOffset, int length) throws IOException {
+        long end = offset + length;
+
+        // Everything in this segment has already been delivered
+        if (end <= ackPoint) {
+            return false;
+        }
+
+        // Trim off anything that has already been delivered
+        if (offset < ackPoint) {
+            int skip = (int) (ackPoint - offset);
+            dataOffset += skip;
+            length -= skip;
+            offset = ackPoint;
+        }
+
+        // Trim off anything that doesn't fit in the ring, the sender will have to retransmit it
+        if (end - ackPoint > capacity) {
+            end = ackPoint + capacity;
+            length = (int) (end - offset);
+            if (length <= 0) {
+                return false;
+            }
+        }
+
+        if (positionalSink != null) {
+            // Whether it is in order or not, it can go straight to its offset in the sink
+            positionalSink.write(offset, data, dataOffset, length);
+            buffered.add(offset, end);
+            if (buffered.getStart(0) > ackPoint) {
+                return false;
+            }
+
+            // Everything up to the end of the run touching the ACK point is now in the sink
+            ackPoint = buffered.getEnd(0);
+            buffered.removeBelow(ackPoint);
+            return true;
+        }
+
+        if (offset == ackPoint) {
+            // In order, so it can go straight to the sink without being copied into the ring
+            sink.deliver(data, dataOffset, length);
+            advance(length);
+            buffered.removeBelow(ackPoint);
+        } else {
+            // Out of order, so hold it in the ring at its offset until the gap before it is filled
+            copyIntoRing(offset, data, dataOffset, length);
+            buffered.add(offset, end);
+            return false;
+        }
+
+        // If this filled a gap then the run of buffered data now touching the ACK point can be delivered too
+        if (!buffered.isEmpty() && buffered.getStart(0) <= ackPoint) {
+            deliverFromRing((int) (buffered.getEnd(0) - ackPoint));
+            buffered.removeBelow(ackPoint);
+        }
+        return true;
+    }
+
+    /**
+     * Takes ranges that are already in the sink, from before a transfer was resumed, as received. Only a positional
+     * sink can be restored, since data held in the ring is lost with the process.
+     * @param ranges
+     */
+    public void restore(RangeSet ranges) {
+        if (positionalSink == null) {
+            throw new IllegalStateException("Only a positional sink can be restored");
+        }
+        for (int i = 0; i < ranges.size(); i++) {
+            buffered.add(ranges.getStart(i), ranges.getEnd(i));
+        }
+        if (!buffered.isEmpty() && buffered.getStart(0) <= ackPoint) {
+            ackPoint = buffered.getEnd(0);
+            buffered.removeBelow(ackPoint);
+        }
+    }
+
+    /**
+     * @return the offset of the first byte that has not yet been received in order
+     */
+    public long getAckPoint() {
+        return ackPoint;
+    }
+
+    /**
+     * @return the ranges of data held above the ACK point
+     */
+    public RangeSet getBufferedRanges() {
+        return buffered;
+    }
+
+    /**
+     * @return the number of bytes held out of order
+     */
+    public long getBufferedBytes() {
+        return buffered.coveredBytes();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void copyIntoRing(long offset, byte[] data, int dataOffset, int length) {
+        int position = (int) ((head + (offset - ackPoint)) % capacity);
+        int firstPart = Math.min(length, capacity - position);
+        System.arraycopy(data, dataOffset, ring, position, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(data, dataOffset + firstPart, ring, 0, length - firstPart);
+        }
+    }
+
+    private void deliverFromRing(int length) throws IOException {
+        int firstPart = Math.min(length, capacity - head);
+        sink.deliver(ring, head, firstPart);
+        if (firstPart < length) {
+            sink.deliver(ring, 0, length - firstPart);
+        }
+        advance(length);
+    }
+
+    private void advance(int length) {
+        ackPoint += length;
+        head = (int) ((head + (long) length) % capacity);
+    }
+}
@@ -1,32 +1,19 @@
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.zip.CRC32;
-import java.util.zip.Checksum;
 
 public class Receiver {
     private static int receiverPort;
     private static String fileName;
-    private static DatagramSocket receiverSocket;
-    private static InetAddress sourceAddress;
-    private static int sourcePort;
-
-    private static int currentSeqNum;
-    private static int currentAckNum;
-    private static int mss;
-    private static byte[][] dataBuffer;
-    private static DatagramPacket[] packetBuffer;
-    private static int senderisn;
-    private static int receiverisn;
-    private static PrintWriter writer;
-    private static long timer;
-
-    private static final int HEADER_SIZE = 17;
-    private static final int ACK_FLAG = 0;
-    private static final int SYN_FLAG = 1;
-    private static final int FIN_FLAG = 2;
+    private static EventLog eventLog;           // Records every packet event, rendered as a text log at the end
+    private static ReceiverServer server;       // Accepts the connection and hands its datagrams to its session
+
+    private static final String BINARY_LOG = "Receiver_log.bin";
+    private static final String TEXT_LOG = "Receiver_log.txt";
+    private static final int LOG_CAPACITY = 1 << 16;
+    private static final boolean SERVER = Boolean.getBoolean("stp.server");     // Accept many senders, forever
+    private static final String METRICS_FILE = System.getProperty("stp.metricsFile");   // Snapshots, if set
+    private static final long METRICS_INTERVAL = Long.getLong("stp.metricsInterval", 1000);
+    private static final int SERVER_THREADS = Integer.getInteger("stp.serverThreads",
+            Runtime.getRuntime().availableProcessors());
 
     public static void main (String[] args) throws IOException {
         // First grab the arguments from the command line ensuring that there are 2
@@ -42,314 +29,59 @@ public class Receiver {
             }
         }
 
-        // Start the three-way handshake process with the source
-        if (!handshake()) {
-            System.out.println("Failed to complete handshake with client.");
-            return;
-        }
-
-        // A TCP packet has a maximum size of 65535 bytes however in reality, most packets are very much smaller than
-        // this.
-        DatagramPacket dataPacket = new DatagramPacket(new byte[65535], 65535);
-        STP packetSTP;
-        int segmentSize;
-
-        // After handshake has been completed, Block the server waiting for packets
-        while (true) {
-            System.out.println("--------------------------------------------");
-            System.out.println("Block while waiting for data packet...");
-            receiverSocket.receive(dataPacket);
-            printToLog(dataPacket, "rcv");
-            System.out.println("A Packet was received");
-            packetSTP = getHeaderFromPacket(dataPacket);
-
-            // Check if the packet received is a FIN Packet, if so then break and initiate shutdown
-            if (checkSTPHeaderFlags(dataPacket, FIN_FLAG)) {
-                System.out.println("FIN Packet received, initiating shutdown");
-                break;
-            }
-
-            // Check if this is the first packet arriving from the sender, if it is then we will note down the
-            // maximum segment size and create a buffer to store the data.
-            if (packetSTP.getSequenceNum() == senderisn + 1) {
-                System.out.println("This is the first packet...");
-                mss = dataPacket.getLength() - HEADER_SIZE;
-                dataBuffer = new byte[mss][];
-                packetBuffer = new DatagramPacket[mss];
-            }
-
-            // Discard all corrupted packets
-            if (isCorrupted(dataPacket)) {
-                continue;
-            }
-
-            // Since it is not a FIN Packet then we simply ACK the packet.
-            // First get the sequence number from the packet we just received and ACK back the sequence number + the
-            // number of bytes received. The number of bytes sent is the length of the UDP datapacket - the length of
-            // the STP header.
-            System.out.println("Storing data from Packet into byte array...");
-            copyToBuffer(dataPacket);
-            System.out.println("Data stored!");
-
-            // Check if the packets are out of order, if it is out of order then our currentAckNum does not change
-            // and we retransmit the last ack. Else we will ack the most recent byte
-            if (currentAckNum != packetSTP.getSequenceNum()) {
-                System.out.println("This packet was out of order...");
-                System.out.println("Retransmitting previous ack");
-            } else {
-                System.out.println("Packet is in order...");
-                System.out.println("ACK the cumulative bytes");
-
-                segmentSize = getLatestPacket().getLength() - HEADER_SIZE;
-                currentAckNum = getHeaderFromPacket(getLatestPacket()).getSequenceNum() + segmentSize;
-                currentSeqNum = getHeaderFromPacket(getLatestPacket()).getAckNum() + 1;
-            }
-
-            System.out.println("Creating ACK Packet...");
-            STP ackSegment = new STP(true, false, false, currentSeqNum, currentAckNum,0);
-            DatagramPacket ackPacket = new DatagramPacket(ackSegment.getHeader(), ackSegment.getHeader().length,
-                    sourceAddress, sourcePort);
-
-            receiverSocket.send(ackPacket);
-            printToLog(ackPacket, "snd");
-
-            System.out.println("ACK Packet successfully sent. Ack Num: " + ackSegment.getAckNum());
+        if (SERVER) {
+            // Keep accepting senders until the process is stopped, each writing to its own file. The log is written
+            // out when the process is stopped.
+            System.out.println("Accepting STP sessions on port " + receiverPort + " with " + SERVER_THREADS +
+                    " threads");
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        writeLogOut();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            server.run();
+        } else {
+            // Handle a single sender on this thread, then finish
             System.out.println("--------------------------------------------");
+            System.out.println("Block while waiting for SYN Packet to arrive...");
+            server.run();
+            writeLogOut();
         }
-
-        // Initiate the shutdown between Sender and Receiver
-        if (!shutdownReceiver()) {
-            System.out.println("Failed to teardown network");
-            return;
-        }
-
-        writeDataOut();
-
     }
 
-    private static boolean bootstrapReceiver (String[] args) throws FileNotFoundException, UnsupportedEncodingException {
+    private static boolean bootstrapReceiver (String[] args) throws IOException {
         receiverPort = Integer.parseInt(args[0]);
         fileName = args[1];
 
+        eventLog = new EventLog(BINARY_LOG, LOG_CAPACITY);
         try {
-            receiverSocket = new DatagramSocket(receiverPort);
-        } catch (SocketException e) {
+            server = SERVER ? new ReceiverServer(receiverPort, fileName, SERVER_THREADS, 0, eventLog) :
+                    new ReceiverServer(receiverPort, fileName, 0, 1, eventLog);
+        } catch (IOException e) {
             System.out.println("Failed to setup UDP socket");
             e.printStackTrace();
             return false;
         }
 
-        writer = new PrintWriter("Receiver_log.txt", "UTF-8");
-        timer = System.currentTimeMillis();
-
-        // Print out the headers for each column into the log
-        writer.print("evnt");
-        writer.print(String.format("%7s", "time"));
-        writer.print(String.format("%7s", "flag"));
-        writer.print(String.format("%17s", "seq num"));
-        writer.print(String.format("%7s", "bytes"));
-        writer.println(String.format("%17s", "ack num"));
-        writer.println("");
-
-        return true;
-    }
-
-    private static boolean handshake() throws IOException {
-        System.out.println("--------------------------------------------");
-        System.out.println("Starting handshake procedure...");
-        // Create a Datagram Packet to store the incoming Syn Packet.
-        DatagramPacket synPacket = new DatagramPacket(new byte[HEADER_SIZE], HEADER_SIZE);
-
-        // Block while waiting for the initial SYN Packet to arrive.
-        System.out.println("Block while waiting for SYN Packet to arrive...");
-        while (!checkSTPHeaderFlags(synPacket, SYN_FLAG)) {
-            receiverSocket.receive(synPacket);
-        }
-
-        // Once you have accepted the original SYN Packet, note down the address and port number of the source in
-        // order to send ACK packets back. Note down the ISN in order to ACK the correct packet.
-        printToLog(synPacket, "rcv");
-        System.out.println("SYN successfully received");
-        sourceAddress = synPacket.getAddress();
-        sourcePort = synPacket.getPort();
-        STP synSegment = getHeaderFromPacket(synPacket);
-        senderisn = synSegment.getSequenceNum();
-        receiverisn = 0;
-
-        // Create a SYNACK Packet and send it back to the host.
-        System.out.println("Creating SYNACK Packet...");
-        STP synAckSegment = new STP(true, true, false, receiverisn, senderisn + 1, 0);
-        DatagramPacket synAckPacket = new DatagramPacket(synAckSegment.getHeader(), synAckSegment.getHeader().length,
-                sourceAddress, sourcePort);
-        receiverSocket.send(synAckPacket);
-        printToLog(synAckPacket, "snd");
-        System.out.println("SYNACK Packet successfully sent");
-
-        // Create a Datagram Packet to store the incoming Ack Packet
-        DatagramPacket ackPacket = new DatagramPacket(new byte[HEADER_SIZE], HEADER_SIZE);
-
-        // Block while waiting for final ACK Packet to signal that the three-way handshake is complete.
-        System.out.println("Block while waiting for final ACK Packet to arrive...");
-        while (!checkSTPHeaderFlags(ackPacket, ACK_FLAG) && !checkSTPAckNum(ackPacket, receiverisn + 1)) {
-            receiverSocket.receive(ackPacket);
-        }
-        currentSeqNum = receiverisn + 1;
-        currentAckNum = senderisn + 1;
-        printToLog(ackPacket, "rcv");
-        System.out.println("ACK successfully received, three way handshake complete");
-        System.out.println("--------------------------------------------");
-
-        return true;
-    }
-
-    private static boolean shutdownReceiver() throws IOException {
-        System.out.println("--------------------------------------------");
-        System.out.println("FIN Packet received. Initiate network teardown...");
-        // After Receiving the FIN Packet we must ACK the Packet
-        STP ackHeader = new STP(true, false, false, currentSeqNum, currentAckNum + 1,0);
-        DatagramPacket ackPacket1 = new DatagramPacket(ackHeader.getHeader(), HEADER_SIZE, sourceAddress, sourcePort);
-        receiverSocket.send(ackPacket1);
-        printToLog(ackPacket1, "snd");
-
-        // Create a FIN Packet and send it to the Sender
-        System.out.println("Creating FIN Packet...");
-        STP finHeader = new STP(false, false, true, currentSeqNum, currentAckNum,0);
-        DatagramPacket finPacket = new DatagramPacket(finHeader.getHeader(), HEADER_SIZE, sourceAddress, sourcePort);
-        receiverSocket.send(finPacket);
-        printToLog(finPacket, "snd");
-        System.out.println("FIN Packet sent!");
-
-        //Block while waiting for ACK
-        System.out.println("Block while waiting for ACK...");
-        DatagramPacket ackPacket2 = new DatagramPacket(new byte[HEADER_SIZE], HEADER_SIZE);
-        while (!checkSTPHeaderFlags(ackPacket2, ACK_FLAG) && !checkSTPAckNum(ackPacket2, currentSeqNum + 1)) {
-            receiverSocket.receive(ackPacket2);
+        server.getMetrics().register();
+        if (METRICS_FILE != null) {
+            server.getMetrics().startSnapshots(METRICS_FILE, METRICS_INTERVAL);
         }
-        printToLog(ackPacket2, "rcv");
-        System.out.println("ACK Received. Receiver successfully closed");
-        System.out.println("--------------------------------------------");
-
         return true;
     }
 
-    private static void copyToBuffer (DatagramPacket datagramPacket) {
-        // Copy the data from the Packet, without the header
-        byte[] data = new byte[mss];
-
-        System.arraycopy(datagramPacket.getData(), HEADER_SIZE, data, 0, mss);
-
-        // Calculate which packet this is in order to place it in the correct location within the buffer
-        STP stp = getHeaderFromPacket(datagramPacket);
-        int packetNum = (stp.getSequenceNum() - senderisn - 1) / mss;
-        dataBuffer[packetNum] = data;
-        packetBuffer[packetNum] = datagramPacket;
-    }
-
-    private static void writeDataOut() throws IOException {
-        System.out.println("--------------------------------------------");
-        // Write the data from the buffer into a file
-        System.out.println("Writing data out from buffer to file...");
-        BufferedWriter fileWriter = new BufferedWriter(new FileWriter(fileName));
-        for (int i = 0; i < dataBuffer.length; i++) {
-            if (dataBuffer[i] != null) {
-                fileWriter.write(new String(dataBuffer[i]));
-            } else {
-                break;
-            }
-        }
-
-        fileWriter.close();
-        writer.close();
-
-        System.out.println("Data copied successfully into file: " + fileName);
-        System.out.println("--------------------------------------------");
-    }
-
-    private static boolean checkSTPHeaderFlags (DatagramPacket packet, int flag) {
-        STP header = getHeaderFromPacket(packet);
-        return header.checkFlag(flag);
-    }
-
-    private static boolean checkSTPAckNum (DatagramPacket packet, int ackNum) {
-        STP header = getHeaderFromPacket(packet);
-        return header.getAckNum() == ackNum;
-    }
-
-    private static STP getHeaderFromPacket (DatagramPacket datagramPacket) {
-        byte[] packetData = datagramPacket.getData();
-        byte[] header = new byte[HEADER_SIZE];
-        System.arraycopy(packetData, 0, header, 0, HEADER_SIZE);
-        STP stpHeader = new STP(header);
-        return stpHeader;
-    }
-
-    private static void printToLog (DatagramPacket datagramPacket, String event) {
-        STP header = getHeaderFromPacket(datagramPacket);
-        long currentTime = System.currentTimeMillis();
-
-        // Print the type of event
-        writer.print(event);
-
-        // Print the time of event
-        writer.print(String.format("%7s", currentTime - timer));
-
-        // Check what flags are set in the header and print appropriately
-        if(checkSTPHeaderFlags(datagramPacket, SYN_FLAG) && checkSTPHeaderFlags(datagramPacket, ACK_FLAG)) {
-            writer.print(String.format("%7s", "SA"));
-        } else if (checkSTPHeaderFlags(datagramPacket, SYN_FLAG)) {
-            writer.print(String.format("%7s", "S"));
-        } else if (checkSTPHeaderFlags(datagramPacket, ACK_FLAG)) {
-            writer.print(String.format("%7s", "A"));
-        } else if (checkSTPHeaderFlags(datagramPacket, FIN_FLAG)) {
-            writer.print(String.format("%7s", "F"));
-        } else {
-            // If nothing else then it is just data
-            writer.print(String.format("%7s", "D"));
-        }
-
-        // Print the Sequence Number
-        writer.print(String.format("%17s", header.getSequenceNum()));
-
-        // Print the Number of Bytes of Data
-        if (datagramPacket.getLength() == HEADER_SIZE) {
-            writer.print(String.format("%7s", 0));
-        } else {
-            writer.print(String.format("%7s", datagramPacket.getLength() - HEADER_SIZE));
-        }
-
-        // Print the Acknowledgement Number
-        writer.println(String.format("%17s", header.getAckNum()));
-    }
-
-    private static DatagramPacket getLatestPacket() {
-        DatagramPacket datagramPacket = null;
-        int i = 0;
-        while (packetBuffer[i] != null) {
-            datagramPacket = packetBuffer[i];
-            i++;
-        }
-        return datagramPacket;
-    }
-
-    private static boolean isCorrupted (DatagramPacket datagramPacket) {
-        // First copy the data into a byte array
-        byte[] data = new byte[datagramPacket.getLength() - HEADER_SIZE];
-        System.arraycopy(datagramPacket.getData(), HEADER_SIZE, data,0,datagramPacket.getLength() - HEADER_SIZE);
-
-        // Calculate the checksum on that data
-        Checksum checksum = new CRC32();
-        checksum.update(data,0, data.length);
-        long calculatedChecksum = checksum.getValue();
-
-        System.out.println("Checksum calculated as " + calculatedChecksum);
+    private static void writeLogOut() throws IOException {
+        eventLog.close();
+        EventLogFormatter.render(BINARY_LOG, TEXT_LOG);
 
-        // Get the checksum from the header of the packet
-        STP stpHeader = getHeaderFromPacket(datagramPacket);
-        if (calculatedChecksum != stpHeader.getChecksum()) {
-            System.out.println("Data is corrupted! Packet dropped...");
-            return true;
-        } else {
-            return false;
+        System.out.println(server.getMetrics());
+        if (METRICS_FILE != null) {
+            server.getMetrics().writeSnapshot(METRICS_FILE);
         }
     }
 }
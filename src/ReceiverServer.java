@@ -0,0 +1,345 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts STP connections from any number of senders on one port. Datagrams are told apart by the address and port
+ * they came from and handed to that sender's ReceiverSession, and a SYN from a new address starts a new session
+ * writing to its own file.
+ *
+ * One thread receives every datagram and passes it to one of a small pool of worker threads, always the same worker
+ * for the same sender, so each session is only ever handled by one thread and needs no locking. With no workers the
+ * receiving thread handles the sessions itself. Datagrams are received into a fixed pool of packets that the workers
+ * hand back once they are done with them.
+ *
+ * A sender striping one file over several connections puts the same transfer id on each of their SYNs. Those sessions
+ * each write their own stripe into the one file, and the file only counts as finished once every stripe has finished.
+ *
+ * Each thread handling sessions has a TimerWheel for its sessions' delayed ACK timers, and waits for datagrams no
+ * longer than until the next timer is due.
+ *
+ * Sessions that hear nothing from their sender for SESSION_TIMEOUT ms are abandoned and their file closed. A session
+ * that has everything and is only waiting for the sender's last ACK, which may have been lost, is finished after
+ * LAST_ACK_TIMEOUT ms instead. If the sender's FIN comes again after that, it is answered without a session.
+ */
+public class ReceiverServer {
+    private static final int PACKET_SIZE = 65535;
+    private static final int PACKETS = Integer.getInteger("stp.serverPackets", 256);
+    private static final long SESSION_TIMEOUT = Long.getLong("stp.sessionTimeout", 60000);
+    private static final long LAST_ACK_TIMEOUT = Long.getLong("stp.lastAckTimeout", 3000);
+    private static final long SWEEP_INTERVAL = 1000;
+    private static final int TIMER_TICK = 1;
+    private static final int TIMER_WHEEL_SIZE = 256;
+
+    private final STPChannel channel;
+    private final String fileName;
+    private final int maxFiles;
+    private final EventLog eventLog;
+    private final long timer;
+    private final STPMetrics metrics = new STPMetrics("Receiver");     // Counts what every session does
+    private final Worker[] workers;
+    private final BlockingQueue<DatagramPacket> freePackets;
+    private final AtomicInteger sessionsStarted = new AtomicInteger();
+    private final AtomicInteger filesStarted = new AtomicInteger();
+    private final AtomicInteger filesFinished = new AtomicInteger();
+    private final Map<Long, StripedTransfer> stripedTransfers = new HashMap<>();   // Guarded by itself
+    private volatile boolean running = true;
+
+    /**
+     * @param port the port to accept connections on
+     * @param fileName the file received data is written to. When more than one file is allowed each file has its
+     *                 number added before the extension, so out.pdf becomes out-1.pdf, out-2.pdf
+     * @param threads the number of worker threads, or 0 to handle sessions on the receiving thread
+     * @param maxFiles stop once this many files have been received, or 0 to keep going forever
+     * @param eventLog
+     * @throws IOException
+     */
+    public ReceiverServer(int port, String fileName, int threads, int maxFiles, EventLog eventLog)
+            throws IOException {
+        this.channel = new STPChannel(port);
+        this.fileName = fileName;
+        this.maxFiles = maxFiles;
+        this.eventLog = eventLog;
+        this.timer = System.currentTimeMillis();
+
+        // Handling sessions on the receiving thread only ever needs the one packet
+        int packets = threads == 0 ? 1 : Math.max(PACKETS, 1);
+        workers = new Worker[threads];
+        freePackets = new ArrayBlockingQueue<>(packets);
+        for (int i = 0; i < packets; i++) {
+            freePackets.add(new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE));
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            Thread thread = new Thread(workers[i], "stp-session-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Receives and dispatches datagrams until maxFiles files have been received or the server is closed.
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        // Without workers the receiving thread keeps the sessions itself
+        Map<SocketAddress, ReceiverSession> sessions = new HashMap<>();
+        STPHeader header = new STPHeader();
+        TimerWheel timerWheel = new TimerWheel(TIMER_TICK, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+
+        try {
+            while (running && (maxFiles == 0 || filesFinished.get() < maxFiles)) {
+                DatagramPacket packet;
+                try {
+                    packet = freePackets.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                if (!channel.receive(packet, workers.length == 0 ? waitTime(timerWheel) : SWEEP_INTERVAL)) {
+                    freePackets.add(packet);
+                } else if (workers.length == 0) {
+                    handle(sessions, header, timerWheel, packet);
+                    freePackets.add(packet);
+                } else {
+                    // The same sender always goes to the same worker
+                    int worker = (packet.getSocketAddress().hashCode() & Integer.MAX_VALUE) % workers.length;
+                    workers[worker].inbound.add(packet);
+                }
+
+                long now = System.currentTimeMillis();
+                if (workers.length == 0) {
+                    runTimers(timerWheel, now);
+                }
+                if (workers.length == 0 && now >= nextSweep) {
+                    sweep(sessions, now);
+                    nextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public void close() throws IOException {
+        running = false;
+        channel.close();
+    }
+
+    public int getLocalPort() {
+        return channel.getLocalPort();
+    }
+
+    public int getSessionsStarted() {
+        return sessionsStarted.get();
+    }
+
+    public int getFilesStarted() {
+        return filesStarted.get();
+    }
+
+    public int getFilesFinished() {
+        return filesFinished.get();
+    }
+
+    public STPMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Passes a datagram to its sender's session, starting a new session if it is a SYN from a new sender.
+     */
+    private void handle(Map<SocketAddress, ReceiverSession> sessions, STPHeader header, TimerWheel timerWheel,
+                        DatagramPacket packet) {
+        SocketAddress remoteAddress = packet.getSocketAddress();
+        ReceiverSession session = sessions.get(remoteAddress);
+        if (session == null) {
+            if (header.wrap(packet).checkFlag(STPHeader.FIN_FLAG)) {
+                answerFin(header, packet);
+                return;
+            }
+            if (!header.checkFlag(STPHeader.SYN_FLAG)) {
+                // A stray datagram from a session that has already finished, or was never started
+                return;
+            }
+            session = startSession(remoteAddress, header, timerWheel);
+            sessions.put(remoteAddress, session);
+        }
+
+        try {
+            if (session.handle(packet)) {
+                sessions.remove(remoteAddress);
+                finish(session);
+            }
+        } catch (IOException e) {
+            // One failed session mustn't take down the others
+            System.out.println("Session " + session.getId() + " with " + remoteAddress + " failed");
+            e.printStackTrace();
+            sessions.remove(remoteAddress);
+            abandon(session);
+        }
+    }
+
+    /**
+     * Answers a FIN from a sender whose session has already finished, because the ACK and FIN the session sent back
+     * were lost and it closed without the last ACK. The sender only FINs once all of its data has been ACK'd, so there
+     * is nothing left to check and it just needs answering the way the session would have.
+     * @param header wrapped around the FIN
+     * @param packet
+     */
+    private void answerFin(STPHeader header, DatagramPacket packet) {
+        STPFrameWriter frameWriter = new STPFrameWriter(packet.getAddress(), packet.getPort());
+        try {
+            channel.send(frameWriter.ack(header.getAckNum(), header.getSequenceNum() + 1));
+            channel.send(frameWriter.fin(header.getAckNum(), header.getSequenceNum()));
+        } catch (IOException e) {
+            System.out.println("Couldn't answer a FIN from " + packet.getSocketAddress() + ": " + e);
+        }
+    }
+
+    /**
+     * Abandons the sessions that haven't heard from their senders for a while.
+     */
+    private void sweep(Map<SocketAddress, ReceiverSession> sessions, long now) {
+        List<ReceiverSession> idle = new ArrayList<>();
+        Iterator<ReceiverSession> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            ReceiverSession session = iterator.next();
+            if (now - session.getLastActivity() > (session.isClosing() ? LAST_ACK_TIMEOUT : SESSION_TIMEOUT)) {
+                iterator.remove();
+                idle.add(session);
+            }
+        }
+        for (ReceiverSession session : idle) {
+            System.out.println("Session " + session.getId() + " with " + session.getRemoteAddress() +
+                    (session.isClosing() ? " closed without its last ACK" : " timed out"));
+            abandon(session);
+        }
+    }
+
+    /**
+     * Starts a session for a SYN from a new sender, joining it to its striped transfer if the SYN carries a stripe.
+     */
+    private ReceiverSession startSession(SocketAddress remoteAddress, STPHeader header, TimerWheel timerWheel) {
+        int id = sessionsStarted.incrementAndGet();
+        int stripe = header.findOption(STPHeader.OPTION_STRIPE);
+        if (stripe < 0 || header.getOptionLength(stripe) < STPHeader.STRIPE_OPTION_LENGTH) {
+            return new ReceiverSession(id, remoteAddress, fileName(filesStarted.incrementAndGet()), channel, eventLog,
+                    timer, timerWheel, metrics);
+        }
+
+        long transferId = header.getBuffer().getLong(stripe);
+        long stripeStart = header.getBuffer().getLong(stripe + 8);
+        StripedTransfer transfer;
+        synchronized (stripedTransfers) {
+            // The first stripe to arrive starts the transfer, the rest join it whichever thread they are handled on
+            transfer = stripedTransfers.get(transferId);
+            if (transfer == null) {
+                transfer = new StripedTransfer(transferId, fileName(filesStarted.incrementAndGet()),
+                        header.getBuffer().getLong(stripe + 16), header.getBuffer().getInt(stripe + 24));
+                stripedTransfers.put(transferId, transfer);
+            }
+        }
+        return new ReceiverSession(id, remoteAddress, transfer.getFileName(), channel, eventLog, timer, timerWheel,
+                metrics, transfer, stripeStart);
+    }
+
+    /**
+     * Counts a session's file as finished, or for a stripe once every stripe of its file has finished.
+     */
+    private void finish(ReceiverSession session) {
+        StripedTransfer transfer = session.getStripedTransfer();
+        if (transfer == null) {
+            filesFinished.incrementAndGet();
+        } else if (transfer.stripeFinished()) {
+            synchronized (stripedTransfers) {
+                stripedTransfers.remove(transfer.getId());
+            }
+            System.out.println("All " + transfer.getStripes() + " stripes of " + transfer.getFileName() +
+                    " received");
+            filesFinished.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return how long a thread can wait for a datagram before its next timer is due or it next sweeps
+     */
+    private long waitTime(TimerWheel timerWheel) {
+        long wait = timerWheel.timeUntilNextExpiry(System.currentTimeMillis());
+        return wait < 0 ? SWEEP_INTERVAL : Math.max(Math.min(wait, SWEEP_INTERVAL), 1);
+    }
+
+    private void runTimers(TimerWheel timerWheel, long now) {
+        try {
+            timerWheel.advance(now);
+        } catch (IOException e) {
+            // Sending a delayed ACK failed, the sender will retransmit and the session will try again
+            e.printStackTrace();
+        }
+    }
+
+    private void abandon(ReceiverSession session) {
+        try {
+            session.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        finish(session);
+    }
+
+    private String fileName(int id) {
+        if (maxFiles == 1) {
+            return fileName;
+        }
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= fileName.lastIndexOf('/')) {
+            return fileName + "-" + id;
+        }
+        return fileName.substring(0, dot) + "-" + id + fileName.substring(dot);
+    }
+
+    /**
+     * An event loop servicing the sessions of the senders hashed to it.
+     */
+    private class Worker implements Runnable {
+        private final BlockingQueue<DatagramPacket> inbound = new ArrayBlockingQueue<>(Math.max(PACKETS, 1));
+        private final Map<SocketAddress, ReceiverSession> sessions = new HashMap<>();
+        private final STPHeader header = new STPHeader();
+        private final TimerWheel timerWheel = new TimerWheel(TIMER_TICK, TIMER_WHEEL_SIZE,
+                System.currentTimeMillis());
+
+        @Override
+        public void run() {
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+            while (running) {
+                DatagramPacket packet;
+                try {
+                    packet = inbound.poll(waitTime(timerWheel), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (packet != null) {
+                    handle(sessions, header, timerWheel, packet);
+                    freePackets.add(packet);
+                }
+
+                long now = System.currentTimeMillis();
+                runTimers(timerWheel, now);
+                if (now >= nextSweep) {
+                    sweep(sessions, now);
+                    nextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+        }
+    }
+}
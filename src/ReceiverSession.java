@@ -0,0 +1,664 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The receiving end of a single STP connection: the handshake, putting the data back in order, ACK'ing it and the
+ * teardown. A session is driven one datagram at a time by handle(), which never blocks, so one thread can service any
+ * number of sessions. A session must only be handled by one thread at a time.
+ *
+ * ACK's are delayed and coalesced: in order data is ACK'd every ACK_EVERY full size segments, or ACK_DELAY ms after
+ * the first segment still waiting for one, whichever is first. Anything the sender needs to hear about straight away
+ * is ACK'd at once: a segment that is out of order or a duplicate, one that leaves or fills a gap, and a short
+ * segment, which is usually the last of the file.
+ *
+ * Data segments the sender compressed, if it asked to on the SYN, are decompressed before they are put back in order.
+ * When the sender offers FEC on the SYN, the parity segments it sends are used to rebuild lost segments, and a gap
+ * that the parity on its way may fill is given until the delayed ACK timer before the sender hears about it.
+ *
+ * When the sender asks for it on the SYN, every ACK advertises how much more past the ACK point the session can take
+ * without holding up the thread handling it: the room left in the file writer's buffers, no more than the reassembly
+ * buffer. The window is carried in 16 bits, scaled by a shift agreed in the handshake as in RFC 7323.
+ *
+ * When the sender identifies its file on the SYN, what has been received is checkpointed next to the file every
+ * CHECKPOINT_INTERVAL ms and when the session is abandoned, and a later SYN for the same file carries on from the
+ * checkpoint. The checkpoint is removed once the whole file has arrived.
+ */
+public class ReceiverSession {
+    private enum State { LISTEN, SYN_RECEIVED, ESTABLISHED, LAST_ACK, CLOSED }
+
+    private final int id;
+    private final SocketAddress remoteAddress;
+    private final String fileName;
+    private final STPChannel channel;
+    private final EventLog eventLog;
+    private final long timer;           // The time the log's timestamps are relative to
+    private final StripedTransfer stripedTransfer;  // The transfer this session carries a stripe of, if any
+    private final long stripeStart;                 // Where in the file this session's data starts
+    private final TimerWheel timerWheel;            // Runs the delayed ACK timer, on the thread handling the session
+    private final TimerWheel.Timeout delayedAck;    // Sends the ACK being held back once ACK_DELAY has passed
+    private final STPMetrics metrics;               // Shared with the other sessions, counts what this one does
+
+    private State state = State.LISTEN;
+    private int currentSeqNum;
+    private int currentAckNum;
+    private int senderisn;
+    private int receiverisn;
+    private boolean sackPermitted;                  // Whether the sender asked for SACK blocks on our ACK's
+    private ReassemblyBuffer reassemblyBuffer;      // Puts the data segments back into order
+    private FileSegmentWriter fileWriter;           // Streams the received data out to the file
+    private SessionStream session;                  // Or writes a session's files into the directory fileName
+    private int sessionFiles;                       // How many files the sender said the session holds
+    private long lastActivity;                      // When a datagram last arrived, to find abandoned sessions
+    private int unackedSegments;                    // Segments received in order since the last ACK
+    private int fullSegmentSize;                    // The size the sender is sending full segments at
+    private int lastSegmentSize;                    // The payload of the last data segment
+    private int agreedMss = -1;                     // The MSS agreed on the SYNACK, -1 if the sender didn't offer one
+    private boolean timestamps;                     // Whether we echo the sender's timestamps
+    private int timestampRecent;                    // The sender's timestamp to echo on the next ACK
+    private int lastAckSent;                        // The ACK number on the last ACK we sent
+    private boolean windowAdvertised;               // Whether the sender asked us to advertise a receive window
+    private int windowScale;                        // The shift our receive window is advertised with
+    private long reportedBuffer;                    // This session's part of the metrics' reorder buffer gauge
+    private boolean resumable;                      // Whether the sender identified the file, so we checkpoint it
+    private long resumeLength;                      // The length of the file the sender identified
+    private byte[] resumeHash;                      // and its hash
+    private RangeSet resumeRanges;                  // What we already had of it, as echoed on the SYNACK
+    private long lastCheckpoint;                    // When the checkpoint was last saved
+
+    private final STPHeader packetHeader = new STPHeader();     // Flyweight used to read the header of a packet
+    private final STPHeader logHeader = new STPHeader();        // Flyweight used when writing packets to the log
+    private final STPFrameWriter frameWriter = new STPFrameWriter();    // Writer for the frames we send
+    private STPChecksum checksum = STPChecksum.create(STPChecksum.CRC32);  // Checks data segments in place
+    private STPCompressor compressor = STPCompressor.create(STPCompressor.NONE);   // Decompresses data segments
+    private byte[] decompressed;                                // A compressed segment's data once decompressed
+    private FecDecoder fec;                                     // Rebuilds lost segments from parity, if agreed
+
+    private static final int SYN_FLAG = STPHeader.SYN_FLAG;
+    private static final int ACK_FLAG = STPHeader.ACK_FLAG;
+    private static final int FIN_FLAG = STPHeader.FIN_FLAG;
+    private static final int MAX_SACK_BLOCKS = 4;
+    private static final int MAX_SEGMENT_SIZE = 65535;
+    private static final boolean SACK = Boolean.parseBoolean(System.getProperty("stp.sack", "true"));
+    private static final boolean VERBOSE = Boolean.getBoolean("stp.verbose");   // Print per packet progress
+    private static final int RECEIVE_BUFFER = Integer.getInteger("stp.receiveBuffer", 1 << 22);
+    private static final int ACK_EVERY = Integer.getInteger("stp.ackEvery", 2);    // 1 ACK's every segment
+    private static final long ACK_DELAY = Long.getLong("stp.ackDelay", 40);
+    private static final boolean TIMESTAMPS = Boolean.parseBoolean(System.getProperty("stp.timestamps", "true"));
+    private static final long CHECKPOINT_INTERVAL = Long.getLong("stp.checkpointInterval", 1000);
+    private static final boolean FLOW_CONTROL = Boolean.parseBoolean(System.getProperty("stp.flowControl", "true"));
+    private static final boolean FEC = Boolean.parseBoolean(System.getProperty("stp.fecReceive", "true"));
+    private static final int MAX_MSS = Math.min(Integer.getInteger("stp.maxMss", MAX_SEGMENT_SIZE),
+            MAX_SEGMENT_SIZE - STPHeader.MAX_HEADER_SIZE);     // The largest segment we agree to take
+
+    /**
+     * @param id
+     * @param remoteAddress the address and port of the sender
+     * @param fileName the file the received data is written to
+     * @param channel the channel to send our frames through
+     * @param eventLog
+     * @param timer
+     * @param timerWheel the wheel of the thread handling the session, for the delayed ACK timer
+     * @param metrics
+     */
+    public ReceiverSession(int id, SocketAddress remoteAddress, String fileName, STPChannel channel,
+                           EventLog eventLog, long timer, TimerWheel timerWheel, STPMetrics metrics) {
+        this(id, remoteAddress, fileName, channel, eventLog, timer, timerWheel, metrics, null, 0);
+    }
+
+    /**
+     * @param id
+     * @param remoteAddress the address and port of the sender
+     * @param fileName the file the received data is written to
+     * @param channel the channel to send our frames through
+     * @param eventLog
+     * @param timer
+     * @param timerWheel the wheel of the thread handling the session, for the delayed ACK timer
+     * @param metrics
+     * @param stripedTransfer the transfer this session carries one stripe of, or null for a whole file
+     * @param stripeStart where in the file the stripe starts
+     */
+    public ReceiverSession(int id, SocketAddress remoteAddress, String fileName, STPChannel channel,
+                           EventLog eventLog, long timer, TimerWheel timerWheel, STPMetrics metrics,
+                           StripedTransfer stripedTransfer, long stripeStart) {
+        this.id = id;
+        this.remoteAddress = remoteAddress;
+        this.fileName = fileName;
+        this.channel = channel;
+        this.eventLog = eventLog;
+        this.timer = timer;
+        this.stripedTransfer = stripedTransfer;
+        this.stripeStart = stripeStart;
+        this.timerWheel = timerWheel;
+        this.metrics = metrics;
+        this.delayedAck = timerWheel.newTimeout(new TimerWheel.Task() {
+            @Override
+            public void expire(TimerWheel.Timeout timeout, long now) throws IOException {
+                sendAck();
+            }
+        }, id);
+
+        InetSocketAddress address = (InetSocketAddress) remoteAddress;
+        frameWriter.setDestination(address.getAddress(), address.getPort());
+    }
+
+    /**
+     * Handles a datagram from the sender.
+     * @param packet
+     * @return true once the connection has been torn down
+     * @throws IOException
+     */
+    public boolean handle(DatagramPacket packet) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        printToLog(packet, EventLog.RCV);
+        STPHeader header = packetHeader.wrap(packet);
+
+        switch (state) {
+            case LISTEN:
+                if (header.checkFlag(SYN_FLAG)) {
+                    acceptSyn(header);
+                }
+                return false;
+
+            case SYN_RECEIVED:
+                if (header.checkFlag(SYN_FLAG)) {
+                    // Our SYNACK was lost, send it again
+                    sendSynAck();
+                } else if (header.checkFlag(ACK_FLAG) && !header.checkFlag(FIN_FLAG) &&
+                        packet.getLength() == header.getHeaderLength()) {
+                    System.out.println("ACK successfully received, three way handshake complete");
+                    System.out.println("--------------------------------------------");
+                    state = State.ESTABLISHED;
+                } else {
+                    // The handshake ACK never came but data did, which means the sender thinks the handshake is done
+                    state = State.ESTABLISHED;
+                    return handleData(packet, header);
+                }
+                return false;
+
+            case ESTABLISHED:
+                return handleData(packet, header);
+
+            case LAST_ACK:
+                if (header.checkFlag(FIN_FLAG)) {
+                    // Our ACK or FIN was lost, send them again
+                    sendFinAck();
+                } else if (header.checkFlag(ACK_FLAG) && header.getAckNum() == currentSeqNum + 1) {
+                    System.out.println("ACK Received. Receiver successfully closed");
+                    System.out.println("--------------------------------------------");
+                    close();
+                    return true;
+                }
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+    private void acceptSyn(STPHeader header) throws IOException {
+        // Note down the ISN in order to ACK the correct packet, then open the file and create the buffer that the
+        // data segments will be reassembled in. The data is written straight through to the file at its offset as it
+        // arrives, and a stripe's data at its offset from the start of the stripe.
+        System.out.println("SYN successfully received");
+        senderisn = header.getSequenceNum();
+        receiverisn = 0;
+        sackPermitted = SACK && header.findOption(STPHeader.OPTION_SACK_PERMITTED) >= 0;
+        int checksumOption = header.findOption(STPHeader.OPTION_CHECKSUM);
+        if (checksumOption >= 0 && STPChecksum.isSupported(header.getBuffer().get(checksumOption))) {
+            checksum = STPChecksum.create(header.getBuffer().get(checksumOption));
+        }
+        int compressionOption = header.findOption(STPHeader.OPTION_COMPRESSION);
+        if (compressionOption >= 0 && STPCompressor.isSupported(header.getBuffer().get(compressionOption))) {
+            compressor = STPCompressor.create(header.getBuffer().get(compressionOption));
+            decompressed = new byte[MAX_SEGMENT_SIZE];
+        }
+        int mssOption = header.findOption(STPHeader.OPTION_MSS);
+        agreedMss = mssOption >= 0 && header.getOptionLength(mssOption) >= 2 ?
+                Math.min(header.getBuffer().getShort(mssOption) & 0xFFFF, MAX_MSS) : -1;
+        int fecOption = header.findOption(STPHeader.OPTION_FEC);
+        if (FEC && fecOption >= 0 && header.getOptionLength(fecOption) >= STPHeader.FEC_OPTION_LENGTH) {
+            int k = header.getBuffer().get(fecOption) & 0xFF;
+            int mss = header.getBuffer().getShort(fecOption + 1) & 0xFFFF;
+            if (agreedMss >= 0) {
+                // The sender only sends parity if the segment size it was offered for is the one agreed
+                mss = Math.min(mss, agreedMss);
+            }
+            if (k > 0 && k <= FecDecoder.MAX_K && mss > 0) {
+                fec = new FecDecoder(k, mss, RECEIVE_BUFFER);
+            }
+        }
+        currentSeqNum = receiverisn + 1;
+        currentAckNum = senderisn + 1;
+        lastAckSent = currentAckNum;
+        int timestamp = header.findOption(STPHeader.OPTION_TIMESTAMP);
+        timestamps = TIMESTAMPS && timestamp >= 0;
+        if (timestamps) {
+            timestampRecent = header.getBuffer().getInt(timestamp);
+        }
+        windowAdvertised = FLOW_CONTROL && header.findOption(STPHeader.OPTION_WINDOW_SCALE) >= 0;
+        windowScale = 0;
+        while ((RECEIVE_BUFFER >> windowScale) > 0xFFFF && windowScale < STPHeader.MAX_WINDOW_SCALE) {
+            windowScale++;
+        }
+        int sessionOption = header.findOption(STPHeader.OPTION_SESSION);
+        boolean isSession = stripedTransfer == null && sessionOption >= 0 && header.getOptionLength(sessionOption) >= 4;
+        if (isSession) {
+            sessionFiles = header.getBuffer().getInt(sessionOption);
+        }
+        int resume = header.findOption(STPHeader.OPTION_RESUME);
+        resumable = stripedTransfer == null && !isSession && resume >= 0 &&
+                header.getOptionLength(resume) >= STPHeader.RESUME_OPTION_LENGTH;
+        if (resumable) {
+            resumeLength = header.getBuffer().getLong(resume);
+            resumeHash = new byte[TransferCheckpoint.HASH_SIZE];
+            for (int i = 0; i < resumeHash.length; i++) {
+                resumeHash[i] = header.getBuffer().get(resume + 8 + i);
+            }
+            resumeRanges = new RangeSet();
+            lastCheckpoint = lastActivity;
+        }
+
+        // Carry on with what we already have of the same file, or start it afresh, first removing any checkpoint so
+        // that it can never describe the emptied file
+        TransferCheckpoint checkpoint = resumable ? TransferCheckpoint.load(fileName) : null;
+        if (isSession) {
+            // The files of a session come one after another, so the stream is put back in order before being split
+            // into them
+            session = new SessionStream(fileName);
+            System.out.println("Session of " + sessionFiles + " files into " + session.getDirectory());
+        } else if (checkpoint != null && checkpoint.matches(resumeLength, resumeHash)) {
+            RangeSet ranges = checkpoint.getRanges();
+            for (int i = 0; i < Math.min(ranges.size(), STPHeader.MAX_RESUME_RANGES); i++) {
+                resumeRanges.add(ranges.getStart(i), ranges.getEnd(i));
+            }
+            fileWriter = FileSegmentWriter.fromSystemProperties(fileName, 0, false);
+            System.out.println("Resuming " + fileName + " with " + resumeRanges.coveredBytes() +
+                    " bytes already received");
+        } else {
+            TransferCheckpoint.delete(fileName);
+            fileWriter = stripedTransfer == null ? FileSegmentWriter.fromSystemProperties(fileName) :
+                    stripedTransfer.openStripe(stripeStart);
+        }
+        reassemblyBuffer = new ReassemblyBuffer(RECEIVE_BUFFER, session != null ? session : fileWriter);
+        if (resumable) {
+            reassemblyBuffer.restore(resumeRanges);
+        }
+        state = State.SYN_RECEIVED;
+        sendSynAck();
+    }
+
+    private void sendSynAck() throws IOException {
+        // Create a SYNACK Packet and send it back to the host, echoing SACK permitted if we will send SACK blocks.
+        System.out.println("Creating SYNACK Packet...");
+        DatagramPacket synAckPacket = frameWriter.synAck(receiverisn, senderisn + 1);
+        if (sackPermitted) {
+            frameWriter.addOption(STPHeader.OPTION_SACK_PERMITTED, 0);
+        }
+        if (session != null) {
+            // Agree to the session
+            int sessionOption = frameWriter.addOption(STPHeader.OPTION_SESSION, 4);
+            frameWriter.getBuffer().putInt(sessionOption, sessionFiles);
+        }
+        if (agreedMss >= 0) {
+            // Agree to the sender's MSS, or the largest we can take if that is smaller
+            int mssOption = frameWriter.addOption(STPHeader.OPTION_MSS, 2);
+            frameWriter.getBuffer().putShort(mssOption, (short) agreedMss);
+        }
+        if (checksum.getAlgorithm() != STPChecksum.CRC32) {
+            // Agree to the checksum the sender asked for
+            int checksumOption = frameWriter.addOption(STPHeader.OPTION_CHECKSUM, 1);
+            frameWriter.getBuffer().put(checksumOption, (byte) checksum.getAlgorithm());
+        }
+        if (compressor.getAlgorithm() != STPCompressor.NONE) {
+            // Agree to the compression the sender offered
+            int compressionOption = frameWriter.addOption(STPHeader.OPTION_COMPRESSION, 1);
+            frameWriter.getBuffer().put(compressionOption, (byte) compressor.getAlgorithm());
+        }
+        if (fec != null) {
+            // Agree to FEC by echoing the block size and mss
+            int fecOption = frameWriter.addOption(STPHeader.OPTION_FEC, STPHeader.FEC_OPTION_LENGTH);
+            frameWriter.getBuffer().put(fecOption, (byte) fec.getK()).putShort(fecOption + 1, (short) fec.getMss());
+        }
+        if (timestamps) {
+            addTimestamp();
+        }
+        if (windowAdvertised) {
+            // Agree to advertise a window, and say how it is scaled
+            int scale = frameWriter.addOption(STPHeader.OPTION_WINDOW_SCALE, 1);
+            frameWriter.getBuffer().put(scale, (byte) windowScale);
+            addWindow();
+        }
+        if (resumable) {
+            // Echo the file's identity with the ranges the sender needn't send again
+            int resume = frameWriter.addOption(STPHeader.OPTION_RESUME,
+                    STPHeader.RESUME_OPTION_LENGTH + resumeRanges.size() * 16);
+            ByteBuffer buffer = frameWriter.getBuffer();
+            buffer.putLong(resume, resumeLength);
+            for (int i = 0; i < resumeHash.length; i++) {
+                buffer.put(resume + 8 + i, resumeHash[i]);
+            }
+            for (int i = 0; i < resumeRanges.size(); i++) {
+                int range = resume + STPHeader.RESUME_OPTION_LENGTH + i * 16;
+                buffer.putLong(range, resumeRanges.getStart(i)).putLong(range + 8, resumeRanges.getEnd(i));
+            }
+        }
+        send(synAckPacket);
+        System.out.println("SYNACK Packet successfully sent");
+    }
+
+    private boolean handleData(DatagramPacket packet, STPHeader header) throws IOException {
+        // Check if the packet received is a FIN Packet, if so then initiate shutdown
+        if (header.checkFlag(FIN_FLAG)) {
+            System.out.println("FIN Packet received, initiating shutdown");
+            timerWheel.cancel(delayedAck);
+            state = State.LAST_ACK;
+            sendFinAck();
+            return false;
+        }
+
+        // Discard all corrupted packets
+        metrics.onSegmentReceived();
+        if (isCorrupted(packet)) {
+            metrics.onCorruptSegment();
+            return false;
+        }
+
+        // Echo the timestamp of the earliest segment the next ACK is for (RFC 7323). A segment starting at or before
+        // the last ACK we sent is either the next one in order or one that fills the gap, while one starting past it
+        // is out of order or arrived after another that is still waiting for its delayed ACK.
+        if (timestamps && header.getSequenceNum() - lastAckSent <= 0) {
+            int timestamp = header.findOption(STPHeader.OPTION_TIMESTAMP);
+            if (timestamp >= 0) {
+                timestampRecent = header.getBuffer().getInt(timestamp);
+            }
+        }
+
+        // Hand the data to the reassembly buffer at its offset from the start of the transfer, widened to 64 bits
+        // by taking the one nearest the ACK point. The number of bytes sent is the length of the UDP datapacket - the
+        // length of the STP header.
+        long ackPoint = reassemblyBuffer.getAckPoint();
+        long offset = STPHeader.unwrap(header.getSequenceNum() - (senderisn + 1), ackPoint);
+        byte[] data = packet.getData();
+        int dataOffset = header.getPayloadOffset();
+        int length = packet.getLength() - header.getHeaderLength();
+        if (header.checkFlag(STPHeader.PARITY_FLAG)) {
+            // Parity is only any use once it rebuilds a segment, which then carries on as if it had just arrived
+            if (fec == null || length < 4 ||
+                    !fec.onParity(offset, header.getBuffer().getInt(dataOffset), data, dataOffset + 4, length - 4)) {
+                return false;
+            }
+            metrics.onSegmentRecovered();
+            offset = fec.getRecoveredOffset();
+            data = fec.getRecovered();
+            dataOffset = 0;
+            length = fec.getRecoveredLength();
+        } else if (header.checkFlag(STPHeader.COMPRESSED_FLAG)) {
+            length = compressor.decompress(data, dataOffset, length, decompressed, 0, MAX_SEGMENT_SIZE);
+            if (length < 0) {
+                // It passed the checksum, so it can only be from a sender that didn't compress it the way it said
+                metrics.onCorruptSegment();
+                return false;
+            }
+            data = decompressed;
+            dataOffset = 0;
+        }
+        boolean hadGap = !reassemblyBuffer.getBufferedRanges().isEmpty();
+        boolean advanced = deliver(offset, data, dataOffset, length);
+        boolean hasGap = !reassemblyBuffer.getBufferedRanges().isEmpty();
+        // Full segments are the largest seen, until two in a row are smaller when the sender has made them smaller
+        fullSegmentSize = length == lastSegmentSize ? length : Math.max(fullSegmentSize, length);
+        lastSegmentSize = length;
+        metrics.onDelivered(reassemblyBuffer.getAckPoint() - ackPoint);
+        if (hadGap || hasGap) {
+            reportBuffer(reassemblyBuffer.getBufferedBytes());
+        }
+
+        // Check if the packets are out of order, if it is out of order then our currentAckNum does not change
+        // and we retransmit the last ack. Else we will ack every byte that has now been received in order
+        if (!advanced) {
+            metrics.onOutOfOrderSegment();
+            if (VERBOSE) {
+                System.out.println("This packet was out of order...");
+                System.out.println("Retransmitting previous ack");
+            }
+        } else {
+            if (VERBOSE) {
+                System.out.println("Packet is in order...");
+                System.out.println("ACK the cumulative bytes");
+            }
+
+            currentAckNum = senderisn + 1 + (int) reassemblyBuffer.getAckPoint();
+            currentSeqNum = header.getAckNum() + 1;
+        }
+
+        // Hold back the ACK for in order full size segments until there are enough of them or the timer goes off,
+        // unless the window is too small for the sender to send another. A gap that parity may yet fill is held back
+        // the same way.
+        boolean awaitingParity = !advanced && fec != null && fec.awaitingParity(reassemblyBuffer.getAckPoint(), offset);
+        if (!awaitingParity && (!advanced || hadGap || hasGap || length < fullSegmentSize ||
+                ++unackedSegments >= ACK_EVERY || (windowAdvertised && receiveWindow() < fullSegmentSize))) {
+            sendAck();
+        } else if (!delayedAck.isPending()) {
+            timerWheel.schedule(delayedAck, lastActivity, ACK_DELAY);
+        }
+
+        if (resumable && lastActivity - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+        return false;
+    }
+
+    /**
+     * Hands data to the reassembly buffer, along with the segment the FEC decoder can rebuild now that it has arrived,
+     * if there is one.
+     * @return true if the ACK point moved
+     * @throws IOException
+     */
+    private boolean deliver(long offset, byte[] data, int dataOffset, int length) throws IOException {
+        boolean advanced = reassemblyBuffer.offer(offset, data, dataOffset, length);
+        if (fec != null && fec.onData(offset, data, dataOffset, length)) {
+            metrics.onSegmentRecovered();
+            advanced |= reassemblyBuffer.offer(fec.getRecoveredOffset(), fec.getRecovered(), 0,
+                    fec.getRecoveredLength());
+        }
+        return advanced;
+    }
+
+    /**
+     * Saves what has been received so far as the file's checkpoint, once it is all on disk.
+     * @throws IOException
+     */
+    private void checkpoint() throws IOException {
+        // Note what has been received before syncing, since only what was handed to the writer by then is synced
+        RangeSet received = new RangeSet(reassemblyBuffer.getBufferedRanges().size() + 1);
+        received.add(0, reassemblyBuffer.getAckPoint());
+        RangeSet buffered = reassemblyBuffer.getBufferedRanges();
+        for (int i = 0; i < buffered.size(); i++) {
+            received.add(buffered.getStart(i), buffered.getEnd(i));
+        }
+        fileWriter.sync();
+        new TransferCheckpoint(resumeLength, resumeHash, received).save(fileName);
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    private void sendAck() throws IOException {
+        timerWheel.cancel(delayedAck);
+        unackedSegments = 0;
+
+        DatagramPacket ackPacket = frameWriter.ack(currentSeqNum, currentAckNum);
+        if (timestamps) {
+            addTimestamp();
+        }
+        if (sackPermitted) {
+            addSackBlocks();
+        }
+        if (windowAdvertised) {
+            addWindow();
+        }
+        send(ackPacket);
+        lastAckSent = currentAckNum;
+
+        if (VERBOSE) {
+            System.out.println("ACK Packet successfully sent. Ack Num: " + currentAckNum);
+        }
+    }
+
+    private void sendFinAck() throws IOException {
+        System.out.println("--------------------------------------------");
+        System.out.println("FIN Packet received. Initiate network teardown...");
+        // After Receiving the FIN Packet we must ACK the Packet
+        send(frameWriter.ack(currentSeqNum, currentAckNum + 1));
+
+        // Create a FIN Packet and send it to the Sender
+        System.out.println("Creating FIN Packet...");
+        send(frameWriter.fin(currentSeqNum, currentAckNum));
+        System.out.println("FIN Packet sent!");
+    }
+
+    /**
+     * Closes the file, writing out whatever is still buffered. Called when the session is torn down, or abandoned.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        boolean finished = state == State.LAST_ACK;
+        state = State.CLOSED;
+        timerWheel.cancel(delayedAck);
+        reportBuffer(0);
+        if (resumable && !finished && reassemblyBuffer != null) {
+            // Cut short, so keep what we have for the sender to resume from
+            checkpoint();
+        }
+        if (fileWriter != null) {
+            fileWriter.close();
+            System.out.println("Data copied successfully into file: " + fileName);
+        }
+        if (session != null) {
+            session.close();
+            System.out.println(session.getFilesReceived() + " of " + sessionFiles + " files (" +
+                    session.getBytesReceived() + " bytes) copied successfully into " + session.getDirectory());
+        }
+        if (resumable && finished) {
+            TransferCheckpoint.delete(fileName);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public StripedTransfer getStripedTransfer() {
+        return stripedTransfer;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return whether everything has been received and our FIN sent, and only the sender's last ACK is missing
+     */
+    public boolean isClosing() {
+        return state == State.LAST_ACK;
+    }
+
+    /**
+     * @return the number of bytes received in order so far
+     */
+    public long getBytesReceived() {
+        return reassemblyBuffer == null ? 0 : reassemblyBuffer.getAckPoint();
+    }
+
+    /**
+     * Moves the metrics' reorder buffer gauge by how much this session's buffer has changed since last time.
+     */
+    private void reportBuffer(long buffered) {
+        metrics.adjustReorderBuffer(buffered - reportedBuffer, buffered);
+        reportedBuffer = buffered;
+    }
+
+    private void send(DatagramPacket packet) throws IOException {
+        channel.send(packet);
+        printToLog(packet, EventLog.SND);
+    }
+
+    private void printToLog(DatagramPacket datagramPacket, int event) {
+        STPHeader header = logHeader.wrap(datagramPacket);
+        eventLog.record(event, System.currentTimeMillis() - timer, header.getFlags(), header.getSequenceNum(),
+                datagramPacket.getLength() - header.getHeaderLength(), header.getAckNum());
+    }
+
+    /**
+     * Adds a timestamp option to the frame being built, echoing the sender's timestamp.
+     */
+    private void addTimestamp() {
+        int position = frameWriter.addOption(STPHeader.OPTION_TIMESTAMP, STPHeader.TIMESTAMP_OPTION_LENGTH);
+        frameWriter.getBuffer().putInt(position, (int) (System.currentTimeMillis() - timer))
+                .putInt(position + 4, timestampRecent);
+    }
+
+    /**
+     * @return how much we can take past the ACK point. Data above the ACK point that has already been handed to the
+     * writer is inside the window, so counts as room.
+     */
+    private long receiveWindow() {
+        if (fileWriter == null) {
+            // A session's stream is only held in the reassembly buffer
+            return reassemblyBuffer.getCapacity();
+        }
+        return Math.min(fileWriter.getFreeBytes() + reassemblyBuffer.getBufferedBytes(),
+                reassemblyBuffer.getCapacity());
+    }
+
+    /**
+     * Adds a window option to the frame being built, advertising the receive window.
+     */
+    private void addWindow() {
+        int position = frameWriter.addOption(STPHeader.OPTION_WINDOW, 2);
+        frameWriter.getBuffer().putShort(position, (short) Math.min(receiveWindow() >> windowScale, 0xFFFF));
+    }
+
+    /**
+     * Adds a SACK option to the ACK frame being built, reporting the first few ranges of data held above the
+     * cumulative ACK point.
+     */
+    private void addSackBlocks() {
+        RangeSet ranges = reassemblyBuffer.getBufferedRanges();
+        int blocks = Math.min(ranges.size(), MAX_SACK_BLOCKS);
+        if (blocks == 0) {
+            return;
+        }
+
+        int position = frameWriter.addOption(STPHeader.OPTION_SACK, blocks * 8);
+        ByteBuffer buffer = frameWriter.getBuffer();
+        for (int i = 0; i < blocks; i++) {
+            buffer.putInt(position + i * 8, senderisn + 1 + (int) ranges.getStart(i));
+            buffer.putInt(position + i * 8 + 4, senderisn + 1 + (int) ranges.getEnd(i));
+        }
+    }
+
+    private boolean isCorrupted(DatagramPacket datagramPacket) {
+        // Check the checksum against the segment where it sits in the packet
+        if (!checksum.verify(datagramPacket)) {
+            if (VERBOSE) {
+                System.out.println("Data is corrupted! Packet dropped...");
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Reno congestion control. The window grows by a segment per ACK in slow start and by a segment per window of data
+ * acknowledged in congestion avoidance. A fast retransmit halves it and a timeout drops it back to a single segment.
+ */
+public class RenoController extends CongestionController {
+    private long bytesAckedInAvoidance; // Bytes acknowledged since the window last grew in congestion avoidance
+
+    public RenoController(int mss) {
+        super(mss);
+    }
+
+    @Override
+    public String getName() {
+        return "reno";
+    }
+
+    @Override
+    protected void ack(long now, long ackOffset, long newlyAcked, long rtt, long inFlight) {
+        if (window < slowStartThreshold) {
+            newlyAcked = slowStart(newlyAcked);
+        }
+
+        // Congestion avoidance, one more segment for every window's worth of data acknowledged
+        bytesAckedInAvoidance += newlyAcked;
+        if (bytesAckedInAvoidance >= window) {
+            bytesAckedInAvoidance -= window;
+            window += mss;
+        }
+    }
+
+    @Override
+    protected void fastRetransmit(long now, long inFlight) {
+        slowStartThreshold = Math.max(inFlight / 2, 2L * mss);
+        window = slowStartThreshold;
+        bytesAckedInAvoidance = 0;
+    }
+
+    @Override
+    protected void timeout(long now, long inFlight) {
+        slowStartThreshold = Math.max(inFlight / 2, 2L * mss);
+        window = mss;
+        bytesAckedInAvoidance = 0;
+    }
+}
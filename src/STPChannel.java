@@ -0,0 +1,173 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A non-blocking UDP endpoint built on a DatagramChannel and a Selector. The channel never blocks, so an event loop
+ * can drain every datagram that has arrived, run its timers and send, and then call await() to sleep until the next
+ * datagram arrives or its next deadline passes. Packets are passed as DatagramPackets like the rest of STP, the
+ * buffers wrapping their arrays are cached so that sending and receiving through the same arrays doesn't allocate.
+ *
+ * A channel that only talks to one peer can be connected to it, and then send a datagram gathered from several
+ * buffers, such as a header and a slice of a mapped file, without copying them together first.
+ *
+ * Any number of threads may send at once, but only one thread may receive.
+ */
+public class STPChannel implements Closeable {
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private Selector writeSelector;     // Waited on by senders when the send buffer is full
+
+    private byte[] sendArray;           // The array sendBuffer wraps
+    private ByteBuffer sendBuffer;
+    private byte[] receiveArray;        // The array receiveBuffer wraps
+    private ByteBuffer receiveBuffer;
+
+    /**
+     * @param port the local port to bind to, or 0 for any
+     * @throws IOException
+     */
+    public STPChannel(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Connects the channel to the one peer it talks to, after which only that peer's datagrams are received.
+     * @param peer
+     * @throws IOException
+     */
+    public void connect(SocketAddress peer) throws IOException {
+        channel.connect(peer);
+    }
+
+    /**
+     * Sends a packet to its address. If the socket's send buffer is full this waits until there is room rather than
+     * let the datagram be dropped.
+     * @param packet
+     * @throws IOException
+     */
+    public synchronized void send(DatagramPacket packet) throws IOException {
+        if (packet.getData() != sendArray) {
+            sendArray = packet.getData();
+            sendBuffer = ByteBuffer.wrap(sendArray);
+        }
+        sendBuffer.limit(packet.getOffset() + packet.getLength()).position(packet.getOffset());
+
+        SocketAddress address = packet.getSocketAddress();
+        while (channel.send(sendBuffer, address) == 0) {
+            awaitRoom();
+        }
+    }
+
+    /**
+     * Sends the buffers, from their positions to their limits, as one datagram to the connected peer. Waits for room
+     * like send().
+     * @param buffers
+     * @throws IOException
+     */
+    public synchronized void write(ByteBuffer[] buffers) throws IOException {
+        try {
+            while (channel.write(buffers) == 0) {
+                awaitRoom();
+            }
+        } catch (PortUnreachableException e) {
+            // Only a connected channel hears about this, and then for some earlier datagram. UDP makes no promises, so
+            // carry on as an unconnected channel would.
+        }
+    }
+
+    private void awaitRoom() throws IOException {
+        // The receiving thread may be waiting on the main selector, so wait for room on a separate one
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        writeSelector.select();
+        writeSelector.selectedKeys().clear();
+    }
+
+    /**
+     * Receives a datagram if one has arrived, without waiting. The packet's length is set to the datagram's length and
+     * its address to where it came from.
+     * @param packet
+     * @return false if nothing had arrived
+     * @throws IOException
+     */
+    public boolean receive(DatagramPacket packet) throws IOException {
+        if (packet.getData() != receiveArray) {
+            receiveArray = packet.getData();
+            receiveBuffer = ByteBuffer.wrap(receiveArray);
+        }
+        receiveBuffer.limit(receiveArray.length).position(packet.getOffset());
+
+        SocketAddress source;
+        try {
+            source = channel.receive(receiveBuffer);
+        } catch (PortUnreachableException e) {
+            // As for write(), the peer wasn't there for some earlier datagram
+            return false;
+        }
+        if (source == null) {
+            return false;
+        }
+        packet.setLength(receiveBuffer.position() - packet.getOffset());
+        packet.setSocketAddress(source);
+        return true;
+    }
+
+    /**
+     * Receives a datagram, waiting for one to arrive.
+     * @param packet
+     * @param timeout the longest to wait in ms, or 0 to wait forever
+     * @return false if nothing arrived in time
+     * @throws IOException
+     */
+    public boolean receive(DatagramPacket packet, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!receive(packet)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (timeout > 0 && remaining <= 0) {
+                return false;
+            }
+            selector.select(timeout > 0 ? remaining : 0);
+            selector.selectedKeys().clear();
+        }
+        return true;
+    }
+
+    /**
+     * Waits until a datagram arrives or the timeout passes, whichever is first.
+     * @param timeout in ms, if it isn't positive this only checks whether a datagram is waiting
+     * @return true if a datagram is waiting to be received
+     * @throws IOException
+     */
+    public boolean await(long timeout) throws IOException {
+        int ready = timeout > 0 ? selector.select(timeout) : selector.selectNow();
+        selector.selectedKeys().clear();
+        return ready > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writeSelector != null) {
+            writeSelector.close();
+        }
+        selector.close();
+        channel.close();
+    }
+}
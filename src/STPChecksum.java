@@ -0,0 +1,171 @@
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Calculates and checks the checksum of data segments in place in the datagram's buffer, with one reused Checksum so
+ * that checking a segment copies and allocates nothing.
+ *
+ * Two algorithms are spoken. CRC32 over the payload alone is what every peer understands. CRC32C covers the header
+ * too, with the checksum field itself counted as zeros, so a corrupted sequence number is caught as well as corrupted
+ * data. CRC32C is asked for with the CHECKSUM option on the SYN, and only used if the SYNACK echoes it back.
+ *
+ * java.util.zip.CRC32C is only there from Java 9, where the JIT turns it into the CPU's CRC32C instructions, so it is
+ * looked up at runtime and never offered when the JVM doesn't have it. Checksum.update(ByteBuffer), which reads a
+ * segment's payload straight out of the mapped file, is only there from Java 8 so is looked up the same way; without
+ * it the payload is read through a small array.
+ */
+public class STPChecksum {
+    public static final int CRC32 = 0;      // Payload only
+    public static final int CRC32C = 1;     // Header and payload
+
+    private static final String CRC32C_CLASS = "java.util.zip.CRC32C";
+    private static final byte[] ZEROS = new byte[STPHeader.CHECKSUM_SIZE];
+
+    private final int algorithm;
+    private final Checksum checksum;
+    private final STPHeader header = new STPHeader();
+    private Method bufferUpdate;        // The checksum's update(ByteBuffer), or null if the JVM doesn't have one
+    private byte[] scratch;             // Reads a payload buffer through when there is no update(ByteBuffer)
+
+    private STPChecksum(int algorithm, Checksum checksum) {
+        this.algorithm = algorithm;
+        this.checksum = checksum;
+        try {
+            this.bufferUpdate = checksum.getClass().getMethod("update", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            this.bufferUpdate = null;
+        }
+    }
+
+    /**
+     * @param algorithm
+     * @return an engine for the algorithm, or for CRC32 if the JVM doesn't have it
+     */
+    public static STPChecksum create(int algorithm) {
+        if (algorithm == CRC32C) {
+            Checksum crc32c = newCrc32c();
+            if (crc32c != null) {
+                return new STPChecksum(CRC32C, crc32c);
+            }
+        }
+        return new STPChecksum(CRC32, new CRC32());
+    }
+
+    /**
+     * @param name crc32 or crc32c
+     * @return
+     */
+    public static int forName(String name) {
+        switch (name.toLowerCase()) {
+            case "crc32":
+                return CRC32;
+            case "crc32c":
+                return CRC32C;
+            default:
+                throw new IllegalArgumentException("Unknown checksum " + name);
+        }
+    }
+
+    public static boolean isSupported(int algorithm) {
+        return algorithm == CRC32 || (algorithm == CRC32C && newCrc32c() != null);
+    }
+
+    public int getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Calculates the checksum of the data segment in the packet and writes it into its header.
+     * @param packet
+     * @return the checksum
+     */
+    public long sign(DatagramPacket packet) {
+        long value = calculate(packet);
+        header.setChecksum(value);
+        return value;
+    }
+
+    /**
+     * Calculates the checksum of a data segment whose payload is in a buffer of its own, such as a slice of the mapped
+     * file, and writes it into the header.
+     * @param packet holding the header, with its length set to the whole segment's
+     * @param payload the payload from its position to its limit, which are left as they are
+     * @return the checksum
+     */
+    public long sign(DatagramPacket packet, ByteBuffer payload) {
+        byte[] data = packet.getData();
+        int start = packet.getOffset();
+        int headerEnd = header.wrap(packet).getPayloadOffset();
+
+        checksum.reset();
+        if (algorithm == CRC32C) {
+            int field = start + STPHeader.CHECKSUM_POS;
+            checksum.update(data, start, field - start);
+            checksum.update(ZEROS, 0, ZEROS.length);
+            checksum.update(data, field + STPHeader.CHECKSUM_SIZE, headerEnd - field - STPHeader.CHECKSUM_SIZE);
+        }
+        update(payload.duplicate());
+        long value = checksum.getValue();
+        header.setChecksum(value);
+        return value;
+    }
+
+    /**
+     * @param packet
+     * @return true if the checksum in the packet's header matches its contents
+     */
+    public boolean verify(DatagramPacket packet) {
+        return calculate(packet) == header.getChecksum();
+    }
+
+    private long calculate(DatagramPacket packet) {
+        byte[] data = packet.getData();
+        int start = packet.getOffset();
+        int end = start + packet.getLength();
+        header.wrap(packet);
+
+        checksum.reset();
+        if (algorithm == CRC32) {
+            int payload = Math.min(header.getPayloadOffset(), end);
+            checksum.update(data, payload, end - payload);
+        } else {
+            // Everything either side of the checksum field, which counts as zeros
+            int field = start + STPHeader.CHECKSUM_POS;
+            int afterField = Math.min(field + STPHeader.CHECKSUM_SIZE, end);
+            checksum.update(data, start, Math.min(field, end) - start);
+            checksum.update(ZEROS, 0, ZEROS.length);
+            checksum.update(data, afterField, end - afterField);
+        }
+        return checksum.getValue();
+    }
+
+    private void update(ByteBuffer buffer) {
+        if (bufferUpdate != null) {
+            try {
+                bufferUpdate.invoke(checksum, buffer);
+                return;
+            } catch (ReflectiveOperationException e) {
+                bufferUpdate = null;
+            }
+        }
+        if (scratch == null) {
+            scratch = new byte[4096];
+        }
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), scratch.length);
+            buffer.get(scratch, 0, length);
+            checksum.update(scratch, 0, length);
+        }
+    }
+
+    private static Checksum newCrc32c() {
+        try {
+            return (Checksum) Class.forName(CRC32C_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the payload of data segments, each on its own so that a segment can still be lost, reordered or
+ * retransmitted without taking any other down with it. Segments keep their sequence numbers in the uncompressed file,
+ * and a compressed one is marked with the COMPRESSED flag so the receiver knows to decompress it before it goes into
+ * the reassembly buffer. The checksum covers the payload as sent.
+ *
+ * Two codecs are spoken, asked for with the COMPRESSION option on the SYN and only used if the SYNACK echoes it back.
+ * DEFLATE is java.util.zip at its fastest level. LZ is a small LZ77 codec in the LZ4 block format, with a single probe
+ * hash table, which compresses less but costs a fraction of the time.
+ *
+ * A segment is only sent compressed if it comes out smaller. When segments keep coming out not much smaller, which is
+ * the case for media and anything already compressed, compression turns itself off and only tries again every so
+ * often, so incompressible data costs next to nothing.
+ */
+public class STPCompressor {
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int LZ = 2;
+
+    private static final double POOR_RATIO = 0.9;   // Compressed to raw above which compression isn't worth it
+    private static final int PROBE_INTERVAL = 64;   // Segments sent raw before trying again after a poor ratio
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private final int algorithm;
+    private Deflater deflater;
+    private Inflater inflater;
+    private int[] hashTable;
+
+    private double ratio;               // Moving average of compressed to raw size
+    private int skip;                   // Segments left to send raw before trying again
+    private long rawBytes;
+    private long compressedBytes;
+    private long segmentsCompressed;
+    private long segmentsSkipped;
+
+    private STPCompressor(int algorithm) {
+        this.algorithm = algorithm;
+        if (algorithm == DEFLATE) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            inflater = new Inflater();
+        } else if (algorithm == LZ) {
+            hashTable = new int[1 << HASH_BITS];
+        }
+    }
+
+    /**
+     * @param algorithm
+     * @return an engine for the algorithm, which only one thread may use at a time
+     */
+    public static STPCompressor create(int algorithm) {
+        return new STPCompressor(isSupported(algorithm) ? algorithm : NONE);
+    }
+
+    /**
+     * @param name none, deflate or lz
+     * @return
+     */
+    public static int forName(String name) {
+        switch (name.toLowerCase()) {
+            case "none":
+                return NONE;
+            case "deflate":
+                return DEFLATE;
+            case "lz":
+                return LZ;
+            default:
+                throw new IllegalArgumentException("Unknown compression " + name);
+        }
+    }
+
+    public static boolean isSupported(int algorithm) {
+        return algorithm == NONE || algorithm == DEFLATE || algorithm == LZ;
+    }
+
+    public int getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Compresses a segment's payload, unless the ratio lately has been too poor to bother.
+     * @param src
+     * @param srcOffset
+     * @param length
+     * @param dst
+     * @param dstOffset
+     * @return the compressed length, or -1 if the segment should be sent as it is
+     */
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        if (algorithm == NONE || length == 0) {
+            return -1;
+        }
+        if (skip > 0) {
+            skip--;
+            segmentsSkipped++;
+            return -1;
+        }
+
+        // Anything that doesn't come out smaller isn't worth the receiver's time
+        int compressed = algorithm == DEFLATE ? deflate(src, srcOffset, length, dst, dstOffset, length - 1) :
+                lzCompress(src, srcOffset, length, dst, dstOffset, length - 1);
+        double segmentRatio = compressed < 0 ? 1 : (double) compressed / length;
+        ratio = segmentsCompressed == 0 && rawBytes == 0 ? segmentRatio : 0.875 * ratio + 0.125 * segmentRatio;
+        rawBytes += length;
+        compressedBytes += compressed < 0 ? length : compressed;
+        if (ratio > POOR_RATIO) {
+            // Hold the average at the threshold, so that one good segment when we next try turns compression back on
+            skip = PROBE_INTERVAL;
+            ratio = POOR_RATIO;
+        }
+        if (compressed >= 0) {
+            segmentsCompressed++;
+        }
+        return compressed;
+    }
+
+    /**
+     * @param src
+     * @param srcOffset
+     * @param length
+     * @param dst
+     * @param dstOffset
+     * @param maxLength
+     * @return the decompressed length, or -1 if the payload isn't valid or doesn't fit
+     */
+    public int decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int maxLength) {
+        if (algorithm == DEFLATE) {
+            return inflate(src, srcOffset, length, dst, dstOffset, maxLength);
+        } else if (algorithm == LZ) {
+            return lzDecompress(src, srcOffset, length, dst, dstOffset, maxLength);
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: segmentsCompressed=%d segmentsSkipped=%d rawBytes=%d compressedBytes=%d ratio=%.3f",
+                algorithm == DEFLATE ? "deflate" : algorithm == LZ ? "lz" : "none", segmentsCompressed,
+                segmentsSkipped, rawBytes, compressedBytes, rawBytes == 0 ? 1.0 : (double) compressedBytes / rawBytes);
+    }
+
+    private int deflate(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int maxLength) {
+        deflater.reset();
+        deflater.setInput(src, srcOffset, length);
+        deflater.finish();
+        int compressed = deflater.deflate(dst, dstOffset, maxLength);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    private int inflate(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int maxLength) {
+        inflater.reset();
+        inflater.setInput(src, srcOffset, length);
+        try {
+            int decompressed = inflater.inflate(dst, dstOffset, maxLength);
+            return inflater.finished() ? decompressed : -1;
+        } catch (DataFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Each sequence is a token with the literal length in its top 4 bits and the match length less MIN_MATCH in its
+     * bottom 4, then the literals, then the match's 2 byte little endian offset back into what has been decoded. A
+     * length of 15 carries on in bytes of 255 and a last byte below it, the literal length's just before the literals
+     * and the match length's just after the offset. The last sequence is literals only.
+     */
+    private int lzCompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int maxLength) {
+        Arrays.fill(hashTable, -1);
+        int end = srcOffset + length;
+        int dstEnd = dstOffset + maxLength;
+        int anchor = srcOffset;
+        int position = srcOffset;
+        int out = dstOffset;
+
+        while (position <= end - MIN_MATCH) {
+            int value = readInt(src, position);
+            int hash = (value * -1640531535) >>> (32 - HASH_BITS);
+            int candidate = hashTable[hash];
+            hashTable[hash] = position;
+            if (candidate < 0 || position - candidate > MAX_OFFSET || readInt(src, candidate) != value) {
+                position++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < end && src[candidate + matchLength] == src[position + matchLength]) {
+                matchLength++;
+            }
+            out = lzSequence(src, anchor, position - anchor, matchLength, dst, out, dstEnd);
+            if (out < 0) {
+                return -1;
+            }
+            dst[out++] = (byte) (position - candidate);
+            dst[out++] = (byte) ((position - candidate) >>> 8);
+            out = lzLength(matchLength - MIN_MATCH, dst, out);
+            position += matchLength;
+            anchor = position;
+        }
+
+        out = lzSequence(src, anchor, end - anchor, 0, dst, out, dstEnd);
+        return out < 0 ? -1 : out - dstOffset;
+    }
+
+    /**
+     * Writes a sequence's token and literals, having made sure there is room for its offset and match length too.
+     * @return where the offset goes, or -1 if the sequence doesn't fit
+     */
+    private static int lzSequence(byte[] src, int literals, int literalLength, int matchLength, byte[] dst, int out,
+                                  int dstEnd) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        int needed = 1 + literalLength / 255 + 1 + matchCode / 255 + 1 + literalLength + (matchLength == 0 ? 0 : 2);
+        if (out + needed > dstEnd) {
+            return -1;
+        }
+
+        dst[out++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(matchCode, 15));
+        out = lzLength(literalLength, dst, out);
+        System.arraycopy(src, literals, dst, out, literalLength);
+        return out + literalLength;
+    }
+
+    private static int lzLength(int length, byte[] dst, int out) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[out++] = (byte) 255;
+                length -= 255;
+            }
+            dst[out++] = (byte) length;
+        }
+        return out;
+    }
+
+    private static int lzDecompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+                                    int maxLength) {
+        int in = srcOffset;
+        int end = srcOffset + length;
+        int out = dstOffset;
+        int dstEnd = dstOffset + maxLength;
+
+        while (in < end) {
+            int token = src[in++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int extra;
+                do {
+                    if (in >= end) {
+                        return -1;
+                    }
+                    extra = src[in++] & 0xFF;
+                    literalLength += extra;
+                } while (extra == 255);
+            }
+            if (literalLength > end - in || literalLength > dstEnd - out) {
+                return -1;
+            }
+            System.arraycopy(src, in, dst, out, literalLength);
+            in += literalLength;
+            out += literalLength;
+            if (in == end) {
+                break;
+            }
+
+            if (end - in < 2) {
+                return -1;
+            }
+            int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+            in += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int extra;
+                do {
+                    if (in >= end) {
+                        return -1;
+                    }
+                    extra = src[in++] & 0xFF;
+                    matchLength += extra;
+                } while (extra == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (offset == 0 || offset > out - dstOffset || matchLength > dstEnd - out) {
+                return -1;
+            }
+            // Byte by byte, since a match may overlap what it is copying
+            for (int i = 0; i < matchLength; i++) {
+                dst[out] = dst[out - offset];
+                out++;
+            }
+        }
+        return out - dstOffset;
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8 | (data[position + 2] & 0xFF) << 16 |
+                (data[position + 3] & 0xFF) << 24;
+    }
+}
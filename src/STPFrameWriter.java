@@ -0,0 +1,66 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds header-only ACK, SYN, SYNACK and FIN frames into a single reusable datagram. Each call overwrites the
+ * previous frame, so the returned packet has to be sent before the writer is used again. Options can be added to the
+ * frame after it has been started and before it is sent.
+ */
+public class STPFrameWriter {
+    private final byte[] frame = new byte[STPHeader.MAX_HEADER_SIZE];
+    private final DatagramPacket packet = new DatagramPacket(frame, STPHeader.HEADER_SIZE);
+    private final STPHeader header = new STPHeader();
+
+    public STPFrameWriter() {
+        header.wrap(frame);
+    }
+
+    public STPFrameWriter(InetAddress address, int port) {
+        this();
+        setDestination(address, port);
+    }
+
+    public void setDestination(InetAddress address, int port) {
+        packet.setAddress(address);
+        packet.setPort(port);
+    }
+
+    public DatagramPacket ack(int sequenceNum, int ackNum) {
+        return frame(true, false, false, sequenceNum, ackNum);
+    }
+
+    public DatagramPacket syn(int sequenceNum) {
+        return frame(false, true, false, sequenceNum, 0);
+    }
+
+    public DatagramPacket synAck(int sequenceNum, int ackNum) {
+        return frame(true, true, false, sequenceNum, ackNum);
+    }
+
+    public DatagramPacket fin(int sequenceNum, int ackNum) {
+        return frame(false, false, true, sequenceNum, ackNum);
+    }
+
+    /**
+     * Adds an option to the frame that was last started.
+     * @param kind
+     * @param valueLength
+     * @return the index in getBuffer() where the option's value should be written
+     */
+    public int addOption(int kind, int valueLength) {
+        int valueIndex = header.appendOption(kind, valueLength);
+        packet.setLength(header.getHeaderLength());
+        return valueIndex;
+    }
+
+    public ByteBuffer getBuffer() {
+        return header.getBuffer();
+    }
+
+    private DatagramPacket frame(boolean isAck, boolean isSyn, boolean isFin, int sequenceNum, int ackNum) {
+        header.write(isAck, isSyn, isFin, sequenceNum, ackNum, 0);
+        packet.setLength(STPHeader.HEADER_SIZE);
+        return packet;
+    }
+}
@@ -0,0 +1,274 @@
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view of an STP header. Rather than copying the header out of a datagram and building a new STP object,
+ * the fields are read and written in place at their fixed offsets within a (possibly direct) ByteBuffer. A single
+ * STPHeader can be re-pointed at any number of packets, so parsing or emitting a segment allocates nothing.
+ *
+ * When the OPTIONS flag is set, the fixed header is followed by a 2 byte length and then that many bytes of options.
+ * Each option is a kind byte, a length byte covering the whole option, and its value. The payload starts straight
+ * after the options, and peers that don't know about options never set the flag.
+ */
+public class STPHeader {
+    public static final int HEADER_SIZE = 17;
+    public static final int ACK_FLAG = 0;
+    public static final int SYN_FLAG = 1;
+    public static final int FIN_FLAG = 2;
+    public static final int OPTIONS_FLAG = 3;
+    public static final int COMPRESSED_FLAG = 4;    // The payload is compressed, see STPCompressor
+    public static final int PARITY_FLAG = 5;        // The payload is the span length and XOR parity, see FecDecoder
+
+    public static final int MAX_OPTIONS_SIZE = 1024;
+    public static final int MAX_HEADER_SIZE = HEADER_SIZE + 2 + MAX_OPTIONS_SIZE;
+
+    // Kinds of option
+    public static final int OPTION_SACK_PERMITTED = 1;  // On SYN and SYNACK, no value
+    public static final int OPTION_SACK = 2;            // On ACK, left and right sequence number of each block
+    public static final int OPTION_STRIPE = 3;          // On SYN, transfer id, stripe offset, file length, stripes
+    public static final int STRIPE_OPTION_LENGTH = 28;
+    public static final int OPTION_CHECKSUM = 4;        // On SYN and SYNACK, 1 byte checksum algorithm
+    public static final int OPTION_TIMESTAMP = 5;       // On every frame once agreed, the sender's and echoed clock
+    public static final int TIMESTAMP_OPTION_LENGTH = 8;
+    public static final int OPTION_RESUME = 6;          // On SYN file length and hash, on SYNACK also the ranges held
+    public static final int RESUME_OPTION_LENGTH = 8 + TransferCheckpoint.HASH_SIZE;
+    public static final int MAX_RESUME_RANGES = (0xFF - 2 - RESUME_OPTION_LENGTH) / 16;    // Start and end of each
+    public static final int OPTION_WINDOW_SCALE = 7;    // On SYN and SYNACK, 1 byte shift the window is scaled by
+    public static final int OPTION_WINDOW = 8;          // On SYNACK and ACK, 2 byte receive window, scaled
+    public static final int MAX_WINDOW_SCALE = 14;
+    public static final int OPTION_COMPRESSION = 9;     // On SYN and SYNACK, 1 byte compression codec
+    public static final int OPTION_FEC = 10;            // On SYN and SYNACK, 1 byte segments per block, 2 byte mss
+    public static final int FEC_OPTION_LENGTH = 3;
+    public static final int OPTION_MSS = 11;            // On SYN the sender's MSS, on SYNACK the one agreed, 2 bytes
+    public static final int OPTION_SESSION = 12;        // On SYN and SYNACK, 4 byte count of files, see SessionStream
+
+    private static final int SEQUENCENUM_POS = 0;
+    private static final int ACKNUM_POS = 4;
+    private static final int FLAG_POS = 8;
+    public static final int CHECKSUM_POS = 9;
+    public static final int CHECKSUM_SIZE = 8;
+    private static final int OPTIONS_LENGTH_POS = 17;
+    private static final int OPTIONS_POS = 19;
+
+    private ByteBuffer buffer;      // The buffer holding the header currently being viewed
+    private int offset;             // Where in the buffer the header starts
+    private byte[] wrappedArray;    // The last byte array that was wrapped, so that its ByteBuffer can be reused
+    private ByteBuffer arrayBuffer; // The ByteBuffer wrapping wrappedArray
+
+    /**
+     * Points this view at a header that starts at the given offset of the buffer. The buffer's position and limit are
+     * never touched as all access is absolute.
+     * @param buffer
+     * @param offset
+     * @return this view
+     */
+    public STPHeader wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public STPHeader wrap(ByteBuffer buffer) {
+        return wrap(buffer, 0);
+    }
+
+    /**
+     * Points this view at a header at the start of a byte array. Wrapping the same array again reuses the ByteBuffer
+     * created the first time.
+     * @param data
+     * @return this view
+     */
+    public STPHeader wrap(byte[] data) {
+        if (data != wrappedArray) {
+            wrappedArray = data;
+            arrayBuffer = ByteBuffer.wrap(data);
+        }
+        return wrap(arrayBuffer, 0);
+    }
+
+    /**
+     * Points this view at the header of a datagram packet.
+     * @param packet
+     * @return this view
+     */
+    public STPHeader wrap(DatagramPacket packet) {
+        wrap(packet.getData());
+        this.offset = packet.getOffset();
+        return this;
+    }
+
+    /**
+     * Widens a 32 bit sequence or ACK number off the wire into the 64 bit one nearest to a number already known, by
+     * serial number arithmetic (RFC 1982). Offsets into files of any size can then be tracked as longs while the
+     * header stays 32 bits, as long as nothing in flight is ever 2GB either side of the number it is compared to.
+     * @param sequenceNum as carried in the header
+     * @param reference a 64 bit number known to be near it, such as the last byte ACK'd
+     * @return
+     */
+    public static long unwrap(int sequenceNum, long reference) {
+        return reference + (sequenceNum - (int) reference);
+    }
+
+    /**
+     * Writes every field of the header in one go.
+     * @return this view
+     */
+    public STPHeader write(boolean isAck, boolean isSyn, boolean isFin, int sequenceNum, int ackNum, long checksum) {
+        setSequenceNum(sequenceNum);
+        setAckNum(ackNum);
+        setFlags(isAck, isSyn, isFin);
+        setChecksum(checksum);
+        return this;
+    }
+
+    public int getSequenceNum() {
+        return buffer.getInt(offset + SEQUENCENUM_POS);
+    }
+
+    public void setSequenceNum(int sequenceNum) {
+        buffer.putInt(offset + SEQUENCENUM_POS, sequenceNum);
+    }
+
+    public int getAckNum() {
+        return buffer.getInt(offset + ACKNUM_POS);
+    }
+
+    public void setAckNum(int ackNum) {
+        buffer.putInt(offset + ACKNUM_POS, ackNum);
+    }
+
+    public int getFlags() {
+        return buffer.get(offset + FLAG_POS) & 0xFF;
+    }
+
+    public void setFlags(int flags) {
+        buffer.put(offset + FLAG_POS, (byte) flags);
+    }
+
+    public void setFlags(boolean isAck, boolean isSyn, boolean isFin) {
+        int flags = 0;
+        if (isAck) {
+            flags |= 1 << ACK_FLAG;
+        }
+
+        if (isSyn) {
+            flags |= 1 << SYN_FLAG;
+        }
+
+        if (isFin) {
+            flags |= 1 << FIN_FLAG;
+        }
+        setFlags(flags);
+    }
+
+    /**
+     * Checks if the flag was used
+     * @param flag
+     * @return
+     */
+    public boolean checkFlag(int flag) {
+        return (getFlags() & (1 << flag)) != 0;
+    }
+
+    /**
+     * @return the number of bytes of options, not including the options length field
+     */
+    public int getOptionsLength() {
+        if (!checkFlag(OPTIONS_FLAG)) {
+            return 0;
+        }
+        return buffer.getShort(offset + OPTIONS_LENGTH_POS) & 0xFFFF;
+    }
+
+    /**
+     * @return the length of the whole header including any options, which is where the payload starts
+     */
+    public int getHeaderLength() {
+        if (!checkFlag(OPTIONS_FLAG)) {
+            return HEADER_SIZE;
+        }
+        return OPTIONS_POS + getOptionsLength();
+    }
+
+    /**
+     * @return the index in the buffer where the payload starts
+     */
+    public int getPayloadOffset() {
+        return offset + getHeaderLength();
+    }
+
+    /**
+     * Looks for an option of the given kind.
+     * @param kind
+     * @return the index in the buffer where the option's value starts, or -1 if the option isn't present
+     */
+    public int findOption(int kind) {
+        if (!checkFlag(OPTIONS_FLAG)) {
+            return -1;
+        }
+
+        int position = offset + OPTIONS_POS;
+        int end = position + getOptionsLength();
+        while (position + 2 <= end) {
+            int optionKind = buffer.get(position) & 0xFF;
+            int optionLength = buffer.get(position + 1) & 0xFF;
+            if (optionLength < 2 || position + optionLength > end) {
+                // A malformed option, so ignore the rest
+                return -1;
+            }
+            if (optionKind == kind) {
+                return position + 2;
+            }
+            position += optionLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @param valueIndex as returned by findOption
+     * @return the length of the option's value
+     */
+    public int getOptionLength(int valueIndex) {
+        return (buffer.get(valueIndex - 1) & 0xFF) - 2;
+    }
+
+    /**
+     * Appends an option after any already in the header. Options have to be appended before the payload is written,
+     * since the payload starts after them.
+     * @param kind
+     * @param valueLength
+     * @return the index in the buffer where the option's value should be written
+     */
+    public int appendOption(int kind, int valueLength) {
+        if (!checkFlag(OPTIONS_FLAG)) {
+            setFlags(getFlags() | (1 << OPTIONS_FLAG));
+            buffer.putShort(offset + OPTIONS_LENGTH_POS, (short) 0);
+        }
+
+        int optionsLength = getOptionsLength();
+        if (optionsLength + valueLength + 2 > MAX_OPTIONS_SIZE || valueLength + 2 > 0xFF) {
+            throw new IllegalArgumentException("Option " + kind + " does not fit in the header");
+        }
+
+        int position = offset + OPTIONS_POS + optionsLength;
+        buffer.put(position, (byte) kind);
+        buffer.put(position + 1, (byte) (valueLength + 2));
+        buffer.putShort(offset + OPTIONS_LENGTH_POS, (short) (optionsLength + valueLength + 2));
+        return position + 2;
+    }
+
+    /**
+     * @return the buffer currently being viewed, for reading and writing option values
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public long getChecksum() {
+        return buffer.getLong(offset + CHECKSUM_POS);
+    }
+
+    public void setChecksum(long checksum) {
+        buffer.putLong(offset + CHECKSUM_POS, checksum);
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Live counters of what the sender's flows or the receiver's sessions are doing, so that a transfer can be watched
+ * while it runs rather than pieced together from the logs afterwards.
+ *
+ * Every flow or session of a process reports into the one instance from its own thread. Counters are atomic longs and
+ * RTT, RTO, window and reordering samples go into lock-free Histograms, so reporting never blocks a flow. The window,
+ * unacknowledged bytes and reorder buffer are gauges summed over every flow or session, each adjusting them by how
+ * much its own value changed.
+ *
+ * The metrics can be watched over JMX, and written as key=value lines to a snapshot file every so often. The file is
+ * replaced whole each time, so whatever reads it never sees half a snapshot.
+ */
+public class STPMetrics implements STPMetricsMXBean {
+    private final String name;
+    private final long started = System.currentTimeMillis();
+
+    // Sender
+    private final AtomicLong segmentsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong fastRetransmits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong acks = new AtomicLong();
+    private final AtomicLong duplicateAcks = new AtomicLong();
+    private final AtomicLong bytesAcked = new AtomicLong();
+    private final AtomicLong pldDrops = new AtomicLong();
+    private final AtomicLong pldCorruptions = new AtomicLong();
+    private final AtomicLong paritySegments = new AtomicLong();
+
+    // Receiver
+    private final AtomicLong segmentsReceived = new AtomicLong();
+    private final AtomicLong corruptSegments = new AtomicLong();
+    private final AtomicLong outOfOrderSegments = new AtomicLong();
+    private final AtomicLong bytesDelivered = new AtomicLong();
+    private final AtomicLong recoveredSegments = new AtomicLong();
+
+    // Gauges, summed over every flow or session
+    private final AtomicLong congestionWindow = new AtomicLong();
+    private final AtomicLong unackedBytes = new AtomicLong();
+    private final AtomicLong reorderBufferBytes = new AtomicLong();
+
+    private final Histogram rtt = new Histogram();
+    private final Histogram rto = new Histogram();
+    private final Histogram window = new Histogram();
+    private final Histogram reorderBuffer = new Histogram();
+
+    // The last snapshot written, to work out the goodput since
+    private long lastSnapshotTime = started;
+    private long lastSnapshotGoodBytes;
+
+    /**
+     * @param name Sender or Receiver
+     */
+    public STPMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as stp:type=name. Failing to is reported, but isn't fatal.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("stp:type=" + name));
+        } catch (JMException e) {
+            System.out.println("Failed to register the " + name + " metrics with JMX");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a daemon thread writing a snapshot to the file every interval ms.
+     * @param fileName
+     * @param interval
+     */
+    public void startSnapshots(final String fileName, final long interval) {
+        Thread thread = new Thread("stp-metrics") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                        writeSnapshot(fileName);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes every metric to the file as key=value lines, with the goodput since the last snapshot as interval.goodput.
+     * @param fileName
+     * @throws IOException
+     */
+    public synchronized void writeSnapshot(String fileName) throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, Long> snapshot = getSnapshot();
+        long goodBytes = goodBytes();
+        long intervalGoodput = now > lastSnapshotTime ?
+                (goodBytes - lastSnapshotGoodBytes) * 1000 / (now - lastSnapshotTime) : 0;
+        lastSnapshotTime = now;
+        lastSnapshotGoodBytes = goodBytes;
+
+        // Write it alongside and move it over the old one
+        File file = new File(fileName);
+        File temporary = new File(fileName + ".tmp");
+        try (Writer writer = new FileWriter(temporary)) {
+            writer.write("# " + name + " metrics at " + now + "\n");
+            for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+            writer.write("interval.goodput=" + intervalGoodput + "\n");
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void onSegmentSent(int bytes, boolean retransmission) {
+        segmentsSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+        if (retransmission) {
+            retransmits.incrementAndGet();
+        }
+    }
+
+    public void onAck(long newlyAcked, long congestionWindow) {
+        acks.incrementAndGet();
+        if (newlyAcked > 0) {
+            bytesAcked.addAndGet(newlyAcked);
+            window.record(congestionWindow);
+        }
+    }
+
+    public void onDuplicateAck() {
+        duplicateAcks.incrementAndGet();
+    }
+
+    public void onFastRetransmit() {
+        fastRetransmits.incrementAndGet();
+    }
+
+    /**
+     * @param rtt the RTT sample in ms
+     * @param rto the retransmission timeout it gives
+     */
+    public void onRttSample(long rtt, long rto) {
+        this.rtt.record(rtt);
+        this.rto.record(rto);
+    }
+
+    /**
+     * @param rto the backed off retransmission timeout
+     */
+    public void onTimeout(long rto) {
+        timeouts.incrementAndGet();
+        this.rto.record(rto);
+    }
+
+    public void onPldDrop() {
+        pldDrops.incrementAndGet();
+    }
+
+    public void onPldCorruption() {
+        pldCorruptions.incrementAndGet();
+    }
+
+    public void onParitySent() {
+        paritySegments.incrementAndGet();
+    }
+
+    /**
+     * Moves the window and unacknowledged bytes gauges by how much one flow's own values have changed.
+     * @param windowChange
+     * @param unackedChange
+     */
+    public void adjustWindow(long windowChange, long unackedChange) {
+        if (windowChange != 0) {
+            congestionWindow.addAndGet(windowChange);
+        }
+        if (unackedChange != 0) {
+            unackedBytes.addAndGet(unackedChange);
+        }
+    }
+
+    public void onSegmentReceived() {
+        segmentsReceived.incrementAndGet();
+    }
+
+    public void onCorruptSegment() {
+        corruptSegments.incrementAndGet();
+    }
+
+    public void onOutOfOrderSegment() {
+        outOfOrderSegments.incrementAndGet();
+    }
+
+    public void onDelivered(long bytes) {
+        bytesDelivered.addAndGet(bytes);
+    }
+
+    public void onSegmentRecovered() {
+        recoveredSegments.incrementAndGet();
+    }
+
+    /**
+     * Moves the reorder buffer gauge by how much one session's buffer has changed.
+     * @param change
+     * @param buffered the session's buffer now, recorded in the histogram
+     */
+    public void adjustReorderBuffer(long change, long buffered) {
+        reorderBufferBytes.addAndGet(change);
+        reorderBuffer.record(buffered);
+    }
+
+    @Override
+    public long getSegmentsSent() {
+        return segmentsSent.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    @Override
+    public long getFastRetransmits() {
+        return fastRetransmits.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getAcks() {
+        return acks.get();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks.get();
+    }
+
+    @Override
+    public long getBytesAcked() {
+        return bytesAcked.get();
+    }
+
+    @Override
+    public long getPldDrops() {
+        return pldDrops.get();
+    }
+
+    @Override
+    public long getPldCorruptions() {
+        return pldCorruptions.get();
+    }
+
+    @Override
+    public long getParitySegments() {
+        return paritySegments.get();
+    }
+
+    @Override
+    public long getSegmentsReceived() {
+        return segmentsReceived.get();
+    }
+
+    @Override
+    public long getCorruptSegments() {
+        return corruptSegments.get();
+    }
+
+    @Override
+    public long getOutOfOrderSegments() {
+        return outOfOrderSegments.get();
+    }
+
+    @Override
+    public long getBytesDelivered() {
+        return bytesDelivered.get();
+    }
+
+    @Override
+    public long getRecoveredSegments() {
+        return recoveredSegments.get();
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        return congestionWindow.get();
+    }
+
+    @Override
+    public long getUnackedBytes() {
+        return unackedBytes.get();
+    }
+
+    @Override
+    public long getReorderBufferBytes() {
+        return reorderBufferBytes.get();
+    }
+
+    /**
+     * @return bytes per second the far end has taken in order since the metrics were created, acknowledged for the
+     * sender and delivered to the file for the receiver
+     */
+    @Override
+    public long getGoodput() {
+        long elapsed = System.currentTimeMillis() - started;
+        return elapsed > 0 ? goodBytes() * 1000 / elapsed : 0;
+    }
+
+    @Override
+    public long getRttMean() {
+        return rtt.getMean();
+    }
+
+    @Override
+    public long getRttP99() {
+        return rtt.getPercentile(99);
+    }
+
+    @Override
+    public long getRtoMean() {
+        return rto.getMean();
+    }
+
+    @Override
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("segmentsSent", getSegmentsSent());
+        snapshot.put("bytesSent", getBytesSent());
+        snapshot.put("retransmits", getRetransmits());
+        snapshot.put("fastRetransmits", getFastRetransmits());
+        snapshot.put("timeouts", getTimeouts());
+        snapshot.put("acks", getAcks());
+        snapshot.put("duplicateAcks", getDuplicateAcks());
+        snapshot.put("bytesAcked", getBytesAcked());
+        snapshot.put("pldDrops", getPldDrops());
+        snapshot.put("pldCorruptions", getPldCorruptions());
+        snapshot.put("paritySegments", getParitySegments());
+        snapshot.put("segmentsReceived", getSegmentsReceived());
+        snapshot.put("corruptSegments", getCorruptSegments());
+        snapshot.put("outOfOrderSegments", getOutOfOrderSegments());
+        snapshot.put("bytesDelivered", getBytesDelivered());
+        snapshot.put("recoveredSegments", getRecoveredSegments());
+        snapshot.put("congestionWindow", getCongestionWindow());
+        snapshot.put("unackedBytes", getUnackedBytes());
+        snapshot.put("reorderBufferBytes", getReorderBufferBytes());
+        snapshot.put("goodput", getGoodput());
+        putHistogram(snapshot, "rtt", rtt);
+        putHistogram(snapshot, "rto", rto);
+        putHistogram(snapshot, "window", window);
+        putHistogram(snapshot, "reorderBuffer", reorderBuffer);
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s metrics: segmentsSent=%d retransmits=%d fastRetransmits=%d timeouts=%d " +
+                        "duplicateAcks=%d pldDrops=%d pldCorruptions=%d paritySegments=%d segmentsReceived=%d " +
+                        "corruptSegments=%d outOfOrderSegments=%d recoveredSegments=%d goodput=%d\n  rtt: %s\n" +
+                        "  rto: %s\n  window: %s\n  reorderBuffer: %s",
+                name, getSegmentsSent(), getRetransmits(), getFastRetransmits(), getTimeouts(), getDuplicateAcks(),
+                getPldDrops(), getPldCorruptions(), getParitySegments(), getSegmentsReceived(), getCorruptSegments(),
+                getOutOfOrderSegments(), getRecoveredSegments(), getGoodput(), rtt, rto, window, reorderBuffer);
+    }
+
+    private long goodBytes() {
+        // Only one of these is ever counted by a process
+        return bytesAcked.get() + bytesDelivered.get();
+    }
+
+    private static void putHistogram(Map<String, Long> snapshot, String name, Histogram histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".mean", histogram.getMean());
+        snapshot.put(name + ".p50", histogram.getPercentile(50));
+        snapshot.put(name + ".p90", histogram.getPercentile(90));
+        snapshot.put(name + ".p99", histogram.getPercentile(99));
+        snapshot.put(name + ".max", histogram.getMax());
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.Map;
+
+/**
+ * What STPMetrics exposes over JMX, under stp:type=Sender or stp:type=Receiver.
+ */
+public interface STPMetricsMXBean {
+    long getSegmentsSent();
+
+    long getBytesSent();
+
+    long getRetransmits();
+
+    long getFastRetransmits();
+
+    long getTimeouts();
+
+    long getAcks();
+
+    long getDuplicateAcks();
+
+    long getBytesAcked();
+
+    long getPldDrops();
+
+    long getPldCorruptions();
+
+    long getParitySegments();
+
+    long getSegmentsReceived();
+
+    long getCorruptSegments();
+
+    long getOutOfOrderSegments();
+
+    long getBytesDelivered();
+
+    long getRecoveredSegments();
+
+    long getCongestionWindow();
+
+    long getUnackedBytes();
+
+    long getReorderBufferBytes();
+
+    long getGoodput();
+
+    long getRttMean();
+
+    long getRttP99();
+
+    long getRtoMean();
+
+    /**
+     * @return every counter, gauge and histogram summary, as written to the snapshot file
+     */
+    Map<String, Long> getSnapshot();
+}
@@ -0,0 +1,109 @@
+/**
+ * The sender's record of which data above the cumulative ACK the receiver has reported through SACK blocks. Offsets
+ * are byte offsets from the start of the transfer. Anything below the highest SACKed byte that hasn't been SACKed is a
+ * hole, and during loss recovery each hole is retransmitted once rather than waiting a round trip per lost segment.
+ */
+public class Scoreboard {
+    private final RangeSet sacked = new RangeSet();
+    private long ackPoint;          // Everything below this has been cumulatively acknowledged
+    private long retransmitHigh;    // Holes below this have already been retransmitted in the current recovery
+
+    /**
+     * Moves the cumulative ACK point up, forgetting any SACK information below it.
+     * @param offset
+     */
+    public void acknowledge(long offset) {
+        if (offset > ackPoint) {
+            ackPoint = offset;
+            sacked.removeBelow(offset);
+        }
+        if (retransmitHigh < ackPoint) {
+            retransmitHigh = ackPoint;
+        }
+    }
+
+    /**
+     * Records a block of data the receiver holds above the cumulative ACK point.
+     * @param start
+     * @param end
+     */
+    public void addBlock(long start, long end) {
+        if (end > ackPoint) {
+            sacked.add(Math.max(start, ackPoint), end);
+        }
+    }
+
+    /**
+     * @return the end of the highest SACKed block, or the ACK point if nothing has been SACKed
+     */
+    public long getHighestSacked() {
+        if (sacked.isEmpty()) {
+            return ackPoint;
+        }
+        return sacked.getEnd(sacked.size() - 1);
+    }
+
+    public boolean isSacked(long start, long end) {
+        return sacked.contains(start, end);
+    }
+
+    /**
+     * Finds the first hole at or after the given offset.
+     * @param from
+     * @return the start of the hole, or -1 if there are no holes left below the highest SACKed byte
+     */
+    public long nextHole(long from) {
+        from = Math.max(from, ackPoint);
+        for (int i = 0; i < sacked.size(); i++) {
+            if (from < sacked.getStart(i)) {
+                return from;
+            }
+            if (from < sacked.getEnd(i)) {
+                from = sacked.getEnd(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param holeStart the start of a hole, as returned by nextHole
+     * @return where the hole ends, which is the start of the next SACKed block
+     */
+    public long holeEnd(long holeStart) {
+        for (int i = 0; i < sacked.size(); i++) {
+            if (sacked.getStart(i) > holeStart) {
+                return sacked.getStart(i);
+            }
+        }
+        return holeStart;
+    }
+
+    /**
+     * Estimates how much data is still in the network, the way RFC 6675's pipe does: everything sent above the ACK
+     * point that hasn't been SACKed, less the holes that haven't been retransmitted yet, which are taken to be lost.
+     * @param sendPoint the end of the data sent so far
+     * @return
+     */
+    public long pipe(long sendPoint) {
+        long pipe = sendPoint - ackPoint - sacked.coveredBytes();
+        for (long hole = nextHole(retransmitHigh); hole >= 0; hole = nextHole(holeEnd(hole))) {
+            pipe -= holeEnd(hole) - hole;
+        }
+        return Math.max(pipe, 0);
+    }
+
+    public long getRetransmitHigh() {
+        return retransmitHigh;
+    }
+
+    public void setRetransmitHigh(long offset) {
+        retransmitHigh = Math.max(offset, ackPoint);
+    }
+
+    /**
+     * Forgets which holes have been retransmitted, so that they are all sent again. Used after a timeout.
+     */
+    public void resetRecovery() {
+        retransmitHigh = ackPoint;
+    }
+}
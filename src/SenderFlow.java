@@ -0,0 +1,1430 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * One STP connection sending a range of a file to a receiver: the handshake, the sliding window with its congestion
+ * control, retransmission timers and PLD, and the teardown. Each flow has its own socket, so a striped transfer runs
+ * several flows side by side on their own threads, each sending its own stripe of the file with its own window and
+ * timeouts. A single flow sends the whole file.
+ */
+public class SenderFlow implements Runnable {
+    private final String[] args;                // The Sender's command line arguments
+    private final int flow;                     // Which stripe this flow sends, from 0
+    private final int flows;                    // How many flows the file is striped across
+    private final long transferId;              // Identifies the stripes of the same file to the receiver
+    private final long stripeStart;             // Where in the file this flow's data starts
+    private final long stripeLength;            // How much of the file this flow sends
+    private final int sessionFiles;             // How many files the file holds if it is a session, otherwise 0
+    private final STPMetrics metrics;           // Shared with the other flows, counts what this flow does
+    private long reportedWindow;                // This flow's part of the metrics' window gauge
+    private long reportedUnacked;               // This flow's part of the metrics' unacknowledged bytes gauge
+    private boolean completed;                  // Whether the whole stripe was sent and the connection closed
+
+    private InetAddress receiverHost;    // receiver_host_ip: The IP address of Receiver machine
+    private int receiverPort;            // receiver_port: The Port number of Receiver
+    private String fileName;             // file.pdf: The name of the pdf file
+    private int mws;                     // MWS: The maximum window size
+    private int mss;                     // MSS: The maximum segment size, then the size segments are being sent at
+    private int maxSegmentSize;          // The MSS agreed in the handshake, no segment is ever larger
+    private int segmentUnit;             // Every segment but the last is a whole number of these, see claimSlot
+    private int gamma;                   // Used for calculation of timeout values
+    private double pDrop;                // Probability that segment is dropped
+    private double pDuplicate;           // Probability that segment not dropped is duped
+    private double pCorrupt;             // Probability that segment not dropped/duped is corrupted
+    private double pOrder;               // Probability that segment not dropped/duped/corrupted is reordered
+    private int maxOrder;                // Maximum number of packets that can be held for reordering (1-6)
+    private double pDelay;               // Probability that segment not dropped/dup/corpt/reordered is delayed
+    private long maxDelay;                // The maximum delay in ms experienced by segments that are delayed
+    private long seed;                   // The seed used for random number generator
+
+    private Random randomGenerator;      // The Random Number generator
+    private PLD pld;                     // Decides what happens to each data segment
+    private STPChannel senderChannel;    // The non-blocking UDP channel for the sender to send through
+    private MappedFile mappedFile;       // The pdf mapped into memory, segments are read straight out of it
+    private long currentSeqNum;          // The current sequence number which we are up to sending, unwrapped
+    private int currentAckNum;           // The current acknowledgement number that the server has given us
+    private long dataSent;               // The amount of bytes that have been sent
+    private long timer;                  // A note of the time that the sender started sending
+    private EventLog eventLog;           // Records every packet event, rendered as a text log at the end
+    private long unackedBytes;           // The number of bytes that have yet to be acknowledged
+    private long lastByteAcked;          // Sequence numbers are tracked as 64 bits, see STPHeader.unwrap
+    private long lastByteSent;
+    private int initialSequenceNum;      // Initial sequence number
+
+    private int timeoutVal;              // The retransmission timeout, including any backoff
+    private double estimatedRTT;         // Used to calculate the retransmission timeout
+    private double devRTT;               // Used to calculate the retransmission timeout
+    private long[] timeSegmentSent;      // When each segment in the window was first sent, by slot
+    private long[] slotSegment;          // Which segment each slot currently belongs to, -1 for none
+    private int[] slotLength;            // The length of the segment each slot belongs to
+    private boolean timestampsEnabled;   // Whether the receiver agreed to echo our timestamps
+    private long retransmitHighWater;    // The end of the furthest data ever retransmitted, for Karn's algorithm
+    private TimerWheel timerWheel;       // Schedules segment retransmissions and PLD delays
+    private TimerWheel.Timeout[] segmentTimeouts;    // The retransmission deadline of each segment, by slot
+    private TimerWheel.Task retransmissionTask;      // Run when a segment's deadline passes
+    private long resendPoint;            // After a timeout the segments up to resendEnd are resent from here as the
+    private long resendEnd;              // window opens again, rather than all at once as their deadlines pass
+    private long nextPacedSend;          // The System.nanoTime() the pacing rate lets the next segment go at
+
+    private int duplicateAcks;           // Counts the current number of duplicate ACK's received
+    private boolean inRecovery;          // Whether we are in fast recovery
+    private long recoveryPoint;          // The last byte sent when recovery started, recovery ends once it is ACK'd
+    private boolean sackEnabled;         // Whether the receiver agreed to send SACK blocks
+    private Scoreboard scoreboard;       // What the receiver has told us it holds above the cumulative ACK
+    private CongestionController congestionController;   // Decides how much may be in flight at once
+    private int windowScale = -1;        // The shift the receiver scales its window by, -1 if it doesn't send one
+    private long receiveWindow = Long.MAX_VALUE;    // How much the receiver last said it can take past its ACK
+    private int forwardingCount;         // Count of number of packets forwarded
+
+    private DatagramPacket reorderedPacket;  // For the PLD to save the packet for re-Ordered sending
+
+    private STPHeader packetHeader;      // Flyweight used to read the header of any packet in place
+    private STPHeader dataHeader;        // Flyweight used to write the header of outgoing data segments
+    private STPHeader logHeader;         // Flyweight used by the log
+    private STPFrameWriter frameWriter;  // Reusable writer for the SYN, ACK and FIN frames we send
+    private DatagramPacket ackPacket;    // Reusable packet that incoming ACK's are received into
+    private byte[] segmentBuffer;        // Reusable buffer that data segments are built in
+    private DatagramPacket segmentPacket;    // Reusable packet wrapping segmentBuffer
+    private ByteBuffer[] gatheredSegment;    // segmentBuffer's header and a slice of the mapping, sent together
+    private boolean gathering;           // Whether the channel is connected, so segments can be sent gathered
+    private STPChecksum segmentChecksum; // Checksums data segments in place, CRC32 until the receiver agrees to more
+    private STPCompressor compressor;    // Compresses data segments, once the receiver agrees to
+    private byte[] rawSegment;           // A segment's data before it is compressed
+    private int fecK;                    // Segments per FEC block once the receiver agrees to FEC, otherwise 0
+    private long parityStart;            // The start of the span the next parity segment covers
+    private long parityEnd;              // and its end, the parity goes once everything before it has been sent
+    private double lossRate;             // Moving average of the share of segments retransmitted, to size spans
+    private long spanSegments;           // New segments sent since the last parity
+    private long spanRetransmits;        // Segments retransmitted since the last parity
+    private byte[] parityBuffer;         // Reusable buffer that parity segments are built in
+    private DatagramPacket parityPacket; // Reusable packet wrapping parityBuffer
+    private int probeStep;               // When probing, segments are sent at segmentUnit << probeStep bytes
+    private double[] probeLoss;          // Moving average of the share of segments retransmitted at each step, or -1
+    private long probeSegments;          // New segments sent at the current step since it was last judged
+    private long probeRetransmits;       // Segments retransmitted since then
+    private int probeJudgements;         // Counts judgements, to try the neighbouring steps again now and then
+    private byte[] fileHash;             // Identifies the file to the receiver when offering to resume
+    private RangeSet resumed;            // What the receiver already had when the transfer resumed, if it did
+
+    private static final int HEADER_SIZE = STPHeader.HEADER_SIZE;
+    private static final int ACK_FLAG = STPHeader.ACK_FLAG;
+    private static final int SYN_FLAG = STPHeader.SYN_FLAG;
+    private static final int FIN_FLAG = STPHeader.FIN_FLAG;
+    private static final int MAX_HEADER_SIZE = STPHeader.MAX_HEADER_SIZE;
+    private static final boolean SACK = Boolean.parseBoolean(System.getProperty("stp.sack", "true"));
+    private static final boolean VERBOSE = Boolean.getBoolean("stp.verbose");   // Print per packet progress
+    private static final int MIN_RTO = Integer.getInteger("stp.minRto", 200);
+    private static final int MAX_RTO = Integer.getInteger("stp.maxRto", 60000);
+    private static final int CONTROL_RETRIES = Integer.getInteger("stp.controlRetries", 6);  // For the SYN and FIN
+    // The FIN backs off no further than this, well inside the few seconds the receiver lingers for the last ACK
+    private static final int MAX_FIN_RTO = Integer.getInteger("stp.maxFinRto", 1000);
+    private static final int TIMER_TICK = 1;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+    private static final long PACING_BURST = 1000000;  // Segments may go this many ns ahead of the pacing rate
+    private static final String CONGESTION_CONTROL = System.getProperty("stp.cc", "reno");
+    private static final int CHECKSUM = STPChecksum.forName(System.getProperty("stp.checksum", "crc32c"));
+    private static final boolean TIMESTAMPS = Boolean.parseBoolean(System.getProperty("stp.timestamps", "true"));
+    private static final int TIMESTAMP_OPTION_SIZE = 2 + STPHeader.TIMESTAMP_OPTION_LENGTH;
+    private static final boolean RESUME = Boolean.getBoolean("stp.resume");    // Carry on from a receiver checkpoint
+    private static final boolean FLOW_CONTROL = Boolean.parseBoolean(System.getProperty("stp.flowControl", "true"));
+    private static final int COMPRESSION = STPCompressor.forName(System.getProperty("stp.compression", "none"));
+    private static final int FEC = Integer.getInteger("stp.fec", 0);       // Segments per FEC block, 0 for no FEC
+    private static final int FEC_BLOCKS = Integer.getInteger("stp.fecBlocks", 0);  // Per parity, 0 to follow loss
+    private static final boolean MSS_PROBE = Boolean.getBoolean("stp.mssProbe");   // Size segments by their loss
+    private static final int PROBE_STEPS = 4;          // Segment sizes probed, each double the last
+    private static final int PROBE_SEGMENTS = 64;      // Segments sent at a size before it is judged
+    private static final double PROBE_LOSS = 0.02;     // Loss at or below which a larger size is worth trying
+    private static final int PROBE_REFRESH = 8;        // Judgements after which sizes already judged are tried again
+    private static final int PACKET_OVERHEAD = HEADER_SIZE + 28;   // The STP, UDP and IPv4 headers of a segment
+
+    /**
+     * @param args the Sender's command line arguments
+     * @param mappedFile the file being sent, which this flow reads from its own view of
+     * @param flow which stripe of the file this flow sends
+     * @param flows how many stripes the file is split into
+     * @param transferId
+     * @param stripeStart where in the file this flow's stripe starts
+     * @param stripeLength
+     * @param eventLog
+     * @param timer the time the log's timestamps are relative to
+     * @param metrics
+     */
+    public SenderFlow(String[] args, MappedFile mappedFile, int flow, int flows, long transferId, long stripeStart,
+                      long stripeLength, EventLog eventLog, long timer, STPMetrics metrics) {
+        this(args, mappedFile, flow, flows, transferId, stripeStart, stripeLength, eventLog, timer, metrics, 0);
+    }
+
+    /**
+     * @param args the Sender's command line arguments
+     * @param mappedFile the file being sent, which this flow reads from its own view of
+     * @param flow which stripe of the file this flow sends
+     * @param flows how many stripes the file is split into
+     * @param transferId
+     * @param stripeStart where in the file this flow's stripe starts
+     * @param stripeLength
+     * @param eventLog
+     * @param timer the time the log's timestamps are relative to
+     * @param metrics
+     * @param sessionFiles if the file is the stream of a session, how many files it holds, see SessionStream
+     */
+    public SenderFlow(String[] args, MappedFile mappedFile, int flow, int flows, long transferId, long stripeStart,
+                      long stripeLength, EventLog eventLog, long timer, STPMetrics metrics, int sessionFiles) {
+        this.args = args;
+        this.mappedFile = mappedFile.view();
+        this.flow = flow;
+        this.flows = flows;
+        this.transferId = transferId;
+        this.stripeStart = stripeStart;
+        this.stripeLength = stripeLength;
+        this.eventLog = eventLog;
+        this.timer = timer;
+        this.metrics = metrics;
+        this.sessionFiles = sessionFiles;
+    }
+
+    @Override
+    public void run() {
+        try {
+            completed = transfer();
+        } catch (IOException e) {
+            System.out.println("Flow " + flow + " failed");
+            e.printStackTrace();
+        } finally {
+            // Take this flow back out of the gauges
+            metrics.adjustWindow(-reportedWindow, -reportedUnacked);
+            reportedWindow = 0;
+            reportedUnacked = 0;
+        }
+    }
+
+    /**
+     * @return whether the whole stripe was sent and the connection closed
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public CongestionController getCongestionController() {
+        return congestionController;
+    }
+
+    public STPCompressor getCompressor() {
+        return compressor;
+    }
+
+    private boolean transfer() throws IOException {
+        if (!bootstrapSender(args)) {
+            System.out.println("Failed to bootstrap the sender.");
+            return false;
+        }
+
+        // Complete 3 way handshake
+        if(!handshake()) {
+            System.out.println("Failed to complete handshake with server.");
+            return false;
+        }
+
+        // Stop and Wait Protocol
+        System.out.println("--------------------------------------------");
+        System.out.println("Starting the Stop and Wait Protocol...");
+
+        while (true) {
+            if (VERBOSE) {
+                System.out.println(".....................");
+            }
+            // Process every ACK that has already arrived, without waiting for more
+            boolean received = false;
+            while (senderChannel.receive(ackPacket)) {
+                processAck(System.currentTimeMillis());
+                received = true;
+            }
+
+            // Run any retransmissions and delayed packets that are due
+            timerWheel.advance(System.currentTimeMillis());
+
+            unackedBytes = lastByteSent - lastByteAcked;
+            reportWindow();
+            if (VERBOSE) {
+                System.out.println("UnackedBytes currently " + unackedBytes);
+            }
+
+            if (stripeLength <= dataSent && unackedBytes == 0) {
+                // End the Stop and Wait Protocol if all bytes of data have been sent and no more bytes are
+                // waiting to be acknowledged.
+                System.out.println("Stop and Wait Protocol complete");
+                System.out.println("--------------------------------------------");
+                break;
+            }
+
+            // Send data if there is still data left in the file to be sent, however if the unackedBytes has eclipsed
+            // the maximum window size, the congestion window or the receiver's window then stop sending and wait.
+            // ACK's are checked again between every segment so that they are processed as they arrive. With nothing
+            // in flight one segment is sent even into a closed receive window, so that its ACK tells us when the
+            // window opens again. After a timeout everything that was in flight is taken to be lost, so only what
+            // has been resent since counts against the window until the resending has caught up.
+            long ackOffset = lastByteAcked - initialSequenceNum - 1;
+            boolean resending = ackOffset < resendEnd && resendPoint < resendEnd;
+            long inFlight = resending ? Math.max(resendPoint - ackOffset, 0) : unackedBytes;
+            boolean windowOpen = (resending || stripeLength > dataSent) &&
+                    inFlight < Math.min(mws, congestionController.getWindow()) &&
+                    (inFlight < receiveWindow || inFlight == 0);
+            long pacingWait = windowOpen ? pacingDelay() : 0;
+            if (windowOpen && pacingWait == 0 && resending) {
+                resendNextSegment();
+            } else if (windowOpen && pacingWait == 0) {
+                sendNextSegment();
+            } else if (!received) {
+                // Nothing to do until an ACK arrives, the next timer is due or pacing lets the next segment go
+                long wait = timerWheel.timeUntilNextExpiry(System.currentTimeMillis());
+                if (wait < 0) {
+                    wait = timeoutVal;
+                }
+                if (windowOpen) {
+                    wait = Math.min(wait, pacingWait);
+                }
+                if (VERBOSE) {
+                    System.out.println("Waiting up to " + wait + "ms for ACK...");
+                }
+                senderChannel.await(Math.max(wait, 1));
+            }
+        }
+
+        // File has been completely sent at this point. Initiate the shutdown of the connection
+        if (!shutdownSender()) {
+            System.out.println("Failed to teardown network");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the next segment of new data from the file.
+     * @throws IOException
+     */
+    private void sendNextSegment() throws IOException {
+        if (resumed != null && skipResumed()) {
+            return;
+        }
+
+        // Build the segment straight out of the mapped file, the last segment may be smaller than the mss
+        int segmentSize = (int) Math.min(mss, stripeLength - dataSent);
+        DatagramPacket dataPacket = buildSegment(dataSent, segmentSize);
+
+        // The index of this segment in the file, retransmitted segments don't have their send time stored since
+        // they are not used to calculate the sample RTT
+        metrics.onSegmentSent(segmentSize, false);
+        pldModule(dataPacket);
+        long now = storePacket(dataSent / segmentUnit);
+        armRetransmissionTimer(dataSent, segmentSize, now);
+        congestionController.onPacketSent(now, dataSent + segmentSize, segmentSize, false);
+        paceSegment(segmentSize);
+
+        // Update the book keeping
+        currentSeqNum += segmentSize;
+        dataSent += segmentSize;
+
+        if (VERBOSE) {
+            System.out.println("Packet successfully sent! Data Sent: " + dataSent);
+        }
+
+        // After sending the data update the lastByteSent with the sequence number
+        lastByteSent = currentSeqNum;
+        unackedBytes = lastByteSent - lastByteAcked;
+        if (VERBOSE) {
+            System.out.println("last Byte sent was " + lastByteSent);
+        }
+
+        // Follow the last segment of a span with its parity
+        spanSegments++;
+        while (fecK > 0 && dataSent >= parityEnd && parityStart < stripeLength) {
+            sendParity();
+        }
+        if (probeLoss != null && ++probeSegments >= PROBE_SEGMENTS) {
+            probeSegmentSize();
+        }
+    }
+
+    /**
+     * Resends the next segment after a timeout, passing over any that the receiver has SACKed or had from before.
+     * @throws IOException
+     */
+    private void resendNextSegment() throws IOException {
+        long offset = Math.max(resendPoint, lastByteAcked - initialSequenceNum - 1);
+        int segmentSize = segmentLength(offset, resendEnd);
+        resendPoint = offset + segmentSize;
+        if ((sackEnabled && scoreboard.isSacked(offset, resendPoint)) ||
+                (resumed != null && resumed.contains(offset, resendPoint))) {
+            return;
+        }
+        retransmitSegment(offset, segmentSize);
+    }
+
+    /**
+     * Judges the segment size that has just been sent at by the share of segments retransmitted since, and moves to
+     * whichever neighbouring size looks to get the most data through per byte sent, much as packetization layer path
+     * MTU discovery (RFC 8899) does. Larger segments carry less overhead, so a larger size is tried whenever loss is
+     * low, and a smaller one when loss is high in case that is down to the size, as it is with bit errors or a link
+     * that drops large datagrams. Sizes already judged are forgotten every so often so that both get tried again.
+     */
+    private void probeSegmentSize() {
+        double loss = Math.min((double) probeRetransmits / probeSegments, 1);
+        probeLoss[probeStep] = probeLoss[probeStep] < 0 ? loss : 0.5 * probeLoss[probeStep] + 0.5 * loss;
+        probeSegments = 0;
+        probeRetransmits = 0;
+        if (++probeJudgements % PROBE_REFRESH == 0) {
+            for (int step = 0; step < PROBE_STEPS; step++) {
+                if (step != probeStep) {
+                    probeLoss[step] = -1;
+                }
+            }
+        }
+
+        int up = probeStep + 1 < PROBE_STEPS ? probeStep + 1 : -1;
+        int down = probeStep - 1;
+        int next = probeStep;
+        if (up >= 0 && probeLoss[up] >= 0 && probeScore(up) > probeScore(probeStep)) {
+            next = up;
+        } else if (down >= 0 && probeLoss[down] >= 0 && probeScore(down) > probeScore(probeStep)) {
+            next = down;
+        } else if (up >= 0 && probeLoss[up] < 0 && probeLoss[probeStep] <= PROBE_LOSS) {
+            next = up;
+        } else if (down >= 0 && probeLoss[down] < 0 && probeLoss[probeStep] > PROBE_LOSS) {
+            next = down;
+        }
+        if (next != probeStep) {
+            probeStep = next;
+            mss = segmentUnit << probeStep;
+            congestionController.setMss(mss);
+            if (VERBOSE) {
+                System.out.println("Segment size now " + mss);
+            }
+        }
+    }
+
+    /**
+     * @param step
+     * @return the share of the bytes sent at the step's size that get data through, going by its loss
+     */
+    private double probeScore(int step) {
+        int size = segmentUnit << step;
+        return (double) size / (size + PACKET_OVERHEAD) * (1 - probeLoss[step]);
+    }
+
+    /**
+     * Sends the XOR of every segment from parityStart to parityEnd, and moves on to the next span.
+     * @throws IOException
+     */
+    private void sendParity() throws IOException {
+        dataHeader.wrap(parityBuffer).write(false, false, false, initialSequenceNum + 1 + (int) parityStart,
+                currentAckNum, 0);
+        dataHeader.setFlags(dataHeader.getFlags() | (1 << STPHeader.PARITY_FLAG));
+        int payload = dataHeader.getHeaderLength();
+        int parityLength = (int) Math.min(mss, parityEnd - parityStart);
+        ByteBuffer.wrap(parityBuffer).putInt(payload, (int) (parityEnd - parityStart));
+        Arrays.fill(parityBuffer, payload + 4, payload + 4 + parityLength, (byte) 0);
+        for (long offset = parityStart; offset < parityEnd; offset += mss) {
+            int segmentSize = (int) Math.min(mss, parityEnd - offset);
+            mappedFile.read(stripeStart + offset, rawSegment, 0, segmentSize);
+            for (int i = 0; i < segmentSize; i++) {
+                parityBuffer[payload + 4 + i] ^= rawSegment[i];
+            }
+        }
+        parityPacket.setLength(payload + 4 + parityLength);
+        segmentChecksum.sign(parityPacket);
+        metrics.onParitySent();
+        pldModule(parityPacket);
+        paceSegment(parityLength);
+
+        parityStart = parityEnd;
+        nextParitySpan();
+    }
+
+    /**
+     * Works out where the span from parityStart ends. The more segments have had to be retransmitted lately the
+     * fewer blocks a span covers, so that a span seldom loses more than the one segment its parity can rebuild.
+     */
+    private void nextParitySpan() {
+        if (spanSegments > 0) {
+            lossRate = 0.75 * lossRate + 0.25 * Math.min((double) spanRetransmits / spanSegments, 1);
+            spanSegments = 0;
+            spanRetransmits = 0;
+        }
+        int blocks = FEC_BLOCKS;
+        if (blocks <= 0) {
+            blocks = lossRate > 0 ? (int) Math.min(1 / (4 * lossRate * fecK), FecDecoder.MAX_SPAN) :
+                    FecDecoder.MAX_SPAN;
+        }
+        blocks = Math.max(Math.min(blocks, FecDecoder.MAX_SPAN), 1);
+        parityEnd = Math.min(parityStart + (long) blocks * fecK * mss, stripeLength);
+    }
+
+    /**
+     * Passes over the segments at the send point that the receiver already had when the transfer resumed. They count as
+     * sent, and are ACK'd once the receiver has everything before them.
+     * @return true if any were passed over
+     */
+    private boolean skipResumed() {
+        boolean skipped = false;
+        while (dataSent < stripeLength) {
+            int segmentSize = (int) Math.min(mss, stripeLength - dataSent);
+            if (!resumed.contains(dataSent, dataSent + segmentSize)) {
+                break;
+            }
+            dataSent += segmentSize;
+            currentSeqNum += segmentSize;
+            skipped = true;
+        }
+        lastByteSent = currentSeqNum;
+        return skipped;
+    }
+
+    /**
+     * Handles the ACK that has just been received into ackPacket.
+     * @param currentTime the time the ACK was received
+     * @throws IOException
+     */
+    private void processAck(long currentTime) throws IOException {
+        printToLog(ackPacket, EventLog.RCV);
+
+        // Update book keeping
+        STPHeader stp = getHeaderFromPacket(ackPacket);
+        if (stp.checkFlag(SYN_FLAG)) {
+            // A SYNACK resent for a SYN we resent, which says nothing about the data
+            return;
+        }
+        long ackNum = STPHeader.unwrap(stp.getAckNum(), lastByteAcked);
+        long newlyAcked = 0;
+        if (windowScale >= 0 && ackNum >= lastByteAcked) {
+            // Only an ACK that isn't older than the last one can say how much room the receiver has now
+            updateReceiveWindow(stp);
+        }
+        if (ackNum > lastByteAcked) {
+            newlyAcked = ackNum - lastByteAcked;
+            cancelRetransmissionTimers(lastByteAcked - initialSequenceNum - 1, ackNum - initialSequenceNum - 1);
+            lastByteAcked = ackNum;
+        }
+        if (sackEnabled) {
+            updateScoreboard(stp);
+        }
+
+        // Check if this is a duplicate ACK, an ACK that moves the window forward is never a duplicate
+        if (newlyAcked > 0) {
+            duplicateAcks = 0;
+        } else if (lastByteAcked == ackNum) {
+            duplicateAcks++;
+            metrics.onDuplicateAck();
+            congestionController.onDuplicateAck(currentTime);
+            if (VERBOSE) {
+                System.out.println("duplicateACKS = " + duplicateAcks);
+            }
+        }
+
+        // NewReno fast retransmit and fast recovery. The third duplicate ACK starts recovery by resending the
+        // segment at the ACK point, unless the ACK point hasn't passed where the last recovery or timeout got to, in
+        // which case the duplicates are for segments that have already been resent. During recovery each partial ACK
+        // shows the next lost segment, which is resent straight away rather than waiting for its timeout, and
+        // recovery ends once everything that was in flight when it started has been ACK'd.
+        if (inRecovery) {
+            if (newlyAcked > 0 && lastByteAcked - recoveryPoint >= 0) {
+                inRecovery = false;
+                congestionController.onRecoveryEnd(currentTime, lastByteSent - lastByteAcked);
+                if (VERBOSE) {
+                    System.out.println("Fast recovery complete");
+                }
+            } else if (newlyAcked > 0) {
+                retransmitLastPacket();
+            } else if (sackEnabled) {
+                // Retransmit any new holes this ACK's SACK blocks have shown up
+                retransmitHoles();
+            }
+        } else if (duplicateAcks == 3 && lastByteAcked - recoveryPoint > 0) {
+            inRecovery = true;
+            recoveryPoint = lastByteSent;
+            congestionController.onFastRetransmit(currentTime, lastByteSent - lastByteAcked);
+            metrics.onFastRetransmit();
+            retransmitLastPacket();
+        }
+
+        if (VERBOSE) {
+            System.out.println("ACK Received: " + ackNum);
+        }
+
+        // When an ACK acknowledges new data, we recalculate the retransmission timeout
+        long sampleRTT = newlyAcked > 0 ? sampleRTT(stp, currentTime, lastByteAcked - newlyAcked) : -1;
+        if (sampleRTT >= 0) {
+            if (VERBOSE) {
+                System.out.println("sampleRTT calculated as: " + sampleRTT);
+            }
+            estimatedRTT = 0.875 * estimatedRTT + 0.125 * sampleRTT;
+            devRTT = 0.75 * devRTT + 0.25 * Math.abs(sampleRTT - estimatedRTT);
+            timeoutVal = calculateTimeout();
+            metrics.onRttSample(sampleRTT, timeoutVal);
+        }
+
+        if (newlyAcked > 0) {
+            congestionController.onAck(currentTime, lastByteAcked - initialSequenceNum - 1, newlyAcked,
+                    sampleRTT, lastByteSent - lastByteAcked);
+        }
+        metrics.onAck(newlyAcked, congestionController.getWindow());
+    }
+
+    /**
+     * Takes the receiver's window from the header of a SYNACK or ACK, if it carries one.
+     * @param stp
+     */
+    private void updateReceiveWindow(STPHeader stp) {
+        int window = stp.findOption(STPHeader.OPTION_WINDOW);
+        if (window >= 0) {
+            receiveWindow = (long) (stp.getBuffer().getShort(window) & 0xFFFF) << windowScale;
+        }
+    }
+
+    /**
+     * Moves the metrics' gauges by how much this flow's window and unacknowledged bytes have changed since last time.
+     */
+    private void reportWindow() {
+        long window = congestionController.getWindow();
+        metrics.adjustWindow(window - reportedWindow, unackedBytes - reportedUnacked);
+        reportedWindow = window;
+        reportedUnacked = unackedBytes;
+    }
+
+    /**
+     * Takes an RTT sample from an ACK that acknowledged new data. With timestamps the receiver echoes the timestamp of
+     * the segment that caused the ACK, retransmission or not, so every such ACK gives a sample. Without them the
+     * sample is the time since the segment ending at the ACK point was sent, and Karn's algorithm throws it away if
+     * the ACK covers anything that was retransmitted, since we can't tell which transmission it is acknowledging.
+     * @param stp
+     * @param now
+     * @param previousAck the cumulative ACK before this one
+     * @return the sample in ms, or -1 if this ACK doesn't give one
+     */
+    private long sampleRTT(STPHeader stp, long now, long previousAck) {
+        if (timestampsEnabled) {
+            int timestamp = stp.findOption(STPHeader.OPTION_TIMESTAMP);
+            if (timestamp < 0) {
+                return -1;
+            }
+            int echoed = stp.getBuffer().getInt(timestamp + 4);
+            return Math.max(timestamp(now) - echoed, 0);
+        }
+
+        if (previousAck - initialSequenceNum - 1 < retransmitHighWater) {
+            return -1;
+        }
+        // The segment ending at the ACK number, unless it was never sent since the receiver had it from before. It
+        // starts no more than the largest segment before it.
+        long acked = lastByteAcked - initialSequenceNum - 1;
+        long last = Math.max(acked - maxSegmentSize, 0) / segmentUnit;
+        for (long segment = (acked - 1) / segmentUnit; segment >= last; segment--) {
+            int slot = (int) (segment % slotSegment.length);
+            if (slotSegment[slot] == segment && segment * segmentUnit + slotLength[slot] == acked) {
+                return timeSegmentSent[slot] == 0 ? -1 : now - timeSegmentSent[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param now
+     * @return our clock as carried in the timestamp option
+     */
+    private int timestamp(long now) {
+        return (int) (now - timer);
+    }
+
+    /**
+     * @return how many ms to wait before the pacing rate lets the next segment go, 0 if it can go now
+     */
+    private long pacingDelay() {
+        if (congestionController.getPacingRate() <= 0) {
+            return 0;
+        }
+        long early = nextPacedSend - System.nanoTime() - PACING_BURST;
+        return early <= 0 ? 0 : Math.max(early / 1000000, 1);
+    }
+
+    /**
+     * Pushes back the time the next segment may be sent by how long this one takes at the pacing rate.
+     * @param segmentSize
+     */
+    private void paceSegment(int segmentSize) {
+        long pacingRate = congestionController.getPacingRate();
+        if (pacingRate > 0) {
+            nextPacedSend = Math.max(nextPacedSend, System.nanoTime()) + segmentSize * 1000000000L / pacingRate;
+        }
+    }
+
+    private boolean bootstrapSender (String[] args) throws IOException {
+        try {
+            receiverHost = InetAddress.getByName(args[0]);
+        } catch (UnknownHostException e) {
+            System.out.println("Failed to retrieve receiver_host_ip");
+            e.printStackTrace();
+            return false;
+        }
+
+        receiverPort = Integer.parseInt(args[1]);
+        fileName = args[2];
+        mws = Integer.parseInt(args[3]);
+        mss = Integer.parseInt(args[4]);
+        gamma = Integer.parseInt(args[5]);
+        pDrop = Double.parseDouble(args[6]);
+        pDuplicate = Double.parseDouble(args[7]);
+        pCorrupt = Double.parseDouble(args[8]);
+        pOrder = Double.parseDouble(args[9]);
+        maxOrder = Integer.parseInt(args[10]);
+        pDelay = Double.parseDouble(args[11]);
+        maxDelay = Long.parseLong(args[12]);
+        seed = Integer.parseInt(args[13]);
+
+        // Each flow drops and delays different segments
+        randomGenerator = new Random(seed + flow);
+        pld = new PLD(pDrop, pDuplicate, pCorrupt, pOrder, pDelay, randomGenerator);
+
+        // Initialise the estimatedRTT and devRTT to 500ms and 250ms as noted in the assignment spec
+        estimatedRTT = 500;
+        devRTT = 250;
+        timeoutVal = calculateTimeout();
+
+        try {
+            senderChannel = new STPChannel(0);
+        } catch (IOException e) {
+            System.out.println("Failed to setup UDP socket");
+            e.printStackTrace();
+            return false;
+        }
+
+        dataSent = 0;
+        if (RESUME && flows == 1 && sessionFiles == 0) {
+            // Identify the file so that a receiver with a checkpoint of it can tell us what it already has
+            long start = System.currentTimeMillis();
+            fileHash = TransferCheckpoint.hash(mappedFile);
+            System.out.println("Hashed " + fileName + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        // Initialise the duplicate ACK counters
+        duplicateAcks = 0;
+        scoreboard = new Scoreboard();
+
+        // Create the flyweights and reusable packets for reading and writing headers
+        packetHeader = new STPHeader();
+        dataHeader = new STPHeader();
+        logHeader = new STPHeader();
+        frameWriter = new STPFrameWriter(receiverHost, receiverPort);
+        ackPacket = new DatagramPacket(new byte[MAX_HEADER_SIZE], MAX_HEADER_SIZE);
+        segmentBuffer = new byte[mss + HEADER_SIZE + 2 + TIMESTAMP_OPTION_SIZE];
+        segmentPacket = new DatagramPacket(segmentBuffer, segmentBuffer.length, receiverHost, receiverPort);
+        gatheredSegment = new ByteBuffer[] {ByteBuffer.wrap(segmentBuffer), null};
+        segmentChecksum = STPChecksum.create(STPChecksum.CRC32);
+        compressor = STPCompressor.create(STPCompressor.NONE);
+        rawSegment = new byte[mss];
+
+        timerWheel = new TimerWheel(TIMER_TICK, TIMER_WHEEL_SIZE, timer);
+        retransmissionTask = new TimerWheel.Task() {
+            @Override
+            public void expire(TimerWheel.Timeout timeout, long now) throws IOException {
+                retransmissionTimedOut(slotSegment[(int) timeout.getId()], now);
+            }
+        };
+
+        return true;
+    }
+
+    /**
+     * Sets up what is kept per segment, once the handshake has settled the segment size.
+     */
+    private void allocateSegmentState() {
+        // The number of segments required to send the file will be the length of the file divided by the maximum
+        // segment size + 1 for if there is a remainder. Only the segments in the window need their send time and
+        // retransmission deadline kept, and the window never holds more than mws / segmentUnit + 2 of them, so they
+        // are kept in slots that are reused as the window moves along however big the file is.
+        long numberOfSegments = (stripeLength + mss - 1) / mss;
+        System.out.println("Number of Segments " + numberOfSegments);
+        int slots = (int) Math.max(Math.min((stripeLength + segmentUnit - 1) / segmentUnit, mws / segmentUnit + 3), 1);
+        timeSegmentSent = new long[slots];
+        slotSegment = new long[slots];
+        slotLength = new int[slots];
+        Arrays.fill(slotSegment, -1);
+        segmentTimeouts = new TimerWheel.Timeout[slots];
+        congestionController = CongestionController.create(CONGESTION_CONTROL, mss);
+    }
+
+    private boolean handshake() throws IOException {
+        System.out.println("--------------------------------------------");
+        System.out.println("Starting Handshake Procedure...");
+        // Generate a random initial sequence number for security reasons. The random number generator generates 32
+        // bit values
+        int clientisn = randomGenerator.nextInt(100000) + 1;
+        initialSequenceNum = clientisn;
+
+        // Create Syn Packet and then sending it to the receiver
+        System.out.println("Creating SYN Packet...");
+        DatagramPacket synPacket = frameWriter.syn(clientisn);
+        if (SACK) {
+            frameWriter.addOption(STPHeader.OPTION_SACK_PERMITTED, 0);
+        }
+        if (sessionFiles > 0) {
+            // Ask the receiver to split the data into files
+            int sessionOption = frameWriter.addOption(STPHeader.OPTION_SESSION, 4);
+            frameWriter.getBuffer().putInt(sessionOption, sessionFiles);
+        }
+        // Offer our MSS, the receiver echoes it or the smaller one it can take
+        int mssOption = frameWriter.addOption(STPHeader.OPTION_MSS, 2);
+        frameWriter.getBuffer().putShort(mssOption, (short) Math.min(mss, 0xFFFF));
+        if (CHECKSUM != STPChecksum.CRC32 && STPChecksum.isSupported(CHECKSUM)) {
+            // Ask for a stronger checksum, receivers that don't know the option leave it out of the SYNACK
+            int checksumOption = frameWriter.addOption(STPHeader.OPTION_CHECKSUM, 1);
+            frameWriter.getBuffer().put(checksumOption, (byte) CHECKSUM);
+        }
+        if (TIMESTAMPS) {
+            int timestamp = frameWriter.addOption(STPHeader.OPTION_TIMESTAMP, STPHeader.TIMESTAMP_OPTION_LENGTH);
+            frameWriter.getBuffer().putInt(timestamp, timestamp(System.currentTimeMillis())).putInt(timestamp + 4, 0);
+        }
+        if (flows > 1) {
+            // Tell the receiver which part of which file this flow carries
+            int stripe = frameWriter.addOption(STPHeader.OPTION_STRIPE, STPHeader.STRIPE_OPTION_LENGTH);
+            frameWriter.getBuffer().putLong(stripe, transferId).putLong(stripe + 8, stripeStart)
+                    .putLong(stripe + 16, mappedFile.length()).putInt(stripe + 24, flows);
+        }
+        if (COMPRESSION != STPCompressor.NONE) {
+            // Offer to compress, receivers that don't know the option leave it out of the SYNACK
+            int compressionOption = frameWriter.addOption(STPHeader.OPTION_COMPRESSION, 1);
+            frameWriter.getBuffer().put(compressionOption, (byte) COMPRESSION);
+        }
+        if (FEC > 0 && FEC <= FecDecoder.MAX_K && mss <= 0xFFFF) {
+            // Offer parity for every block of FEC segments
+            int fecOption = frameWriter.addOption(STPHeader.OPTION_FEC, STPHeader.FEC_OPTION_LENGTH);
+            frameWriter.getBuffer().put(fecOption, (byte) FEC).putShort(fecOption + 1, (short) mss);
+        }
+        if (FLOW_CONTROL) {
+            // Ask the receiver to advertise its window. We never receive data, so have no window of our own to scale.
+            int scale = frameWriter.addOption(STPHeader.OPTION_WINDOW_SCALE, 1);
+            frameWriter.getBuffer().put(scale, (byte) 0);
+        }
+        if (fileHash != null) {
+            int resume = frameWriter.addOption(STPHeader.OPTION_RESUME, STPHeader.RESUME_OPTION_LENGTH);
+            frameWriter.getBuffer().putLong(resume, mappedFile.length());
+            for (int i = 0; i < fileHash.length; i++) {
+                frameWriter.getBuffer().put(resume + 8 + i, fileHash[i]);
+            }
+        }
+        senderChannel.send(synPacket);
+        printToLog(synPacket, EventLog.SND);
+        System.out.println("SYN Packet successfully sent");
+
+        // Block while waiting for SYNACK Packet
+        System.out.println("Block while waiting for SYNACK Packet...");
+        DatagramPacket synAckPacket = ackPacket;
+
+        // Ensure that the packet received is a SYNACK packet, we do this by ensuring that the SYN and ACK flags are
+        // both set. We also ensure that the Acknowledgement Number is equal to our initial sequence number + 1.
+        // Either the SYN or the SYNACK may be lost, so the SYN is resent each time the timeout passes without one,
+        // backing off, and the receiver answers every SYN with its SYNACK.
+        int retries = 0;
+        while (!checkSTPHeaderFlags(synAckPacket, SYN_FLAG) || !checkSTPHeaderFlags(synAckPacket, ACK_FLAG) ||
+                !checkSTPAckNum(synAckPacket, clientisn+1)) {
+            if (!senderChannel.receive(synAckPacket, timeoutVal)) {
+                if (++retries > CONTROL_RETRIES) {
+                    throw new SocketTimeoutException("No SYNACK received");
+                }
+                timeoutVal = (int) Math.min(timeoutVal * 2L, MAX_RTO);
+                senderChannel.send(synPacket);
+                printToLog(synPacket, EventLog.RXT);
+                System.out.println("No SYNACK, SYN Packet resent");
+            }
+        }
+        printToLog(synAckPacket, EventLog.RCV);
+        System.out.println("SYNACK Packet successfully received");
+
+        // Retrieve the STP header from the SYNACK Packet. SACK is used if the receiver echoed SACK permitted.
+        int serverisn = getHeaderFromPacket(synAckPacket).getSequenceNum();
+        sackEnabled = SACK && getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_SACK_PERMITTED) >= 0;
+        int checksumOption = getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_CHECKSUM);
+        if (checksumOption >= 0 && packetHeader.getBuffer().get(checksumOption) == CHECKSUM) {
+            segmentChecksum = STPChecksum.create(CHECKSUM);
+        }
+        if (sessionFiles > 0 && getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_SESSION) < 0) {
+            // It would write the whole stream into one file
+            System.out.println("The receiver doesn't take sessions");
+            return false;
+        }
+        int agreedMss = getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_MSS);
+        if (agreedMss >= 0) {
+            mss = Math.max(Math.min(mss, packetHeader.getBuffer().getShort(agreedMss) & 0xFFFF), 1);
+        }
+        maxSegmentSize = mss;
+        System.out.println("MSS " + mss + (agreedMss >= 0 ? " agreed" : ", the receiver didn't say"));
+        System.out.println("Checksum " + (segmentChecksum.getAlgorithm() == STPChecksum.CRC32C ? "CRC32C" : "CRC32"));
+        int compressionOption = getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_COMPRESSION);
+        if (compressionOption >= 0 && packetHeader.getBuffer().get(compressionOption) == COMPRESSION) {
+            compressor = STPCompressor.create(COMPRESSION);
+        }
+        System.out.println("Compression " + (compressor.getAlgorithm() == STPCompressor.NONE ? "disabled" :
+                compressor.getAlgorithm() == STPCompressor.DEFLATE ? "Deflate" : "LZ"));
+        System.out.println("SACK " + (sackEnabled ? "enabled" : "disabled"));
+        timestampsEnabled = TIMESTAMPS &&
+                getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_TIMESTAMP) >= 0;
+        System.out.println("Timestamps " + (timestampsEnabled ? "enabled" : "disabled"));
+        int fecOption = getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_FEC);
+        if (FEC > 0 && fecOption >= 0 && (packetHeader.getBuffer().get(fecOption) & 0xFF) == FEC &&
+                (packetHeader.getBuffer().getShort(fecOption + 1) & 0xFFFF) == mss) {
+            fecK = FEC;
+            parityBuffer = new byte[HEADER_SIZE + 4 + mss];
+            parityPacket = new DatagramPacket(parityBuffer, parityBuffer.length, receiverHost, receiverPort);
+            lossRate = 0.25 / fecK;
+        }
+        System.out.println("FEC " + (fecK > 0 ? "parity every " + fecK + " segments" : "disabled"));
+        segmentUnit = mss;
+        if (MSS_PROBE && fecK == 0 && mss >= 1 << (PROBE_STEPS - 1)) {
+            // Probe sizes from an eighth of the MSS up to it, starting at the largest. Parity blocks need every
+            // segment the same size, so there is no probing with FEC.
+            segmentUnit = mss >> (PROBE_STEPS - 1);
+            probeStep = PROBE_STEPS - 1;
+            mss = segmentUnit << probeStep;
+            probeLoss = new double[PROBE_STEPS];
+            Arrays.fill(probeLoss, -1);
+            System.out.println("Probing segment sizes from " + segmentUnit + " to " + mss);
+        }
+        allocateSegmentState();
+        int scale = FLOW_CONTROL ? getHeaderFromPacket(synAckPacket).findOption(STPHeader.OPTION_WINDOW_SCALE) : -1;
+        if (scale >= 0) {
+            windowScale = Math.min(packetHeader.getBuffer().get(scale) & 0xFF, STPHeader.MAX_WINDOW_SCALE);
+            updateReceiveWindow(packetHeader);
+            System.out.println("Receive window " + receiveWindow + " bytes, scaled by " + windowScale);
+        } else {
+            System.out.println("Receive window not advertised");
+        }
+        resumed = fileHash != null ? resumedRanges(getHeaderFromPacket(synAckPacket)) : null;
+
+        // Sending out the Ack for the SYNACK segment
+        System.out.println("Creating ACK Packet...");
+        DatagramPacket handshakeAck = frameWriter.ack(clientisn+1, serverisn+1);
+        senderChannel.send(handshakeAck);
+        printToLog(handshakeAck, EventLog.SND);
+        System.out.println("ACK Packet sent, three-way handshake complete");
+        System.out.println("--------------------------------------------");
+        // Only the receiver is talked to from here on, so data segments can be sent straight out of the mapping
+        senderChannel.connect(new InetSocketAddress(receiverHost, receiverPort));
+        gathering = true;
+        // Store the correct sequence numbers and acknowledgement numbers
+        currentAckNum = serverisn + 1;
+        currentSeqNum = clientisn + 1;
+        lastByteAcked = currentSeqNum;
+        recoveryPoint = initialSequenceNum;
+
+        if (resumed != null && !resumed.isEmpty()) {
+            // Start from the last whole segment the receiver has from the start of the file, any ranges it has
+            // beyond that are skipped as the send point reaches them
+            System.out.println("Resuming, the receiver already has " + resumed.coveredBytes() + " bytes");
+            if (resumed.getStart(0) == 0) {
+                dataSent = resumed.getEnd(0) / mss * mss;
+                currentSeqNum += dataSent;
+                lastByteSent = currentSeqNum;
+                lastByteAcked = currentSeqNum;
+            }
+        }
+        if (fecK > 0) {
+            parityStart = dataSent / ((long) fecK * mss) * fecK * mss;
+            parityEnd = parityStart;
+            nextParitySpan();
+        }
+
+        return true;
+    }
+
+    /**
+     * @param synAck the header of the SYNACK
+     * @return the ranges of the file the receiver echoed on the SYNACK as already having, or null if it didn't
+     * recognise the file or doesn't know how to resume
+     */
+    private RangeSet resumedRanges(STPHeader synAck) {
+        int resume = synAck.findOption(STPHeader.OPTION_RESUME);
+        if (resume < 0 || synAck.getOptionLength(resume) < STPHeader.RESUME_OPTION_LENGTH) {
+            return null;
+        }
+        ByteBuffer buffer = synAck.getBuffer();
+        if (buffer.getLong(resume) != mappedFile.length()) {
+            return null;
+        }
+        for (int i = 0; i < fileHash.length; i++) {
+            if (buffer.get(resume + 8 + i) != fileHash[i]) {
+                return null;
+            }
+        }
+
+        RangeSet ranges = new RangeSet();
+        int count = (synAck.getOptionLength(resume) - STPHeader.RESUME_OPTION_LENGTH) / 16;
+        for (int i = 0; i < count; i++) {
+            int range = resume + STPHeader.RESUME_OPTION_LENGTH + i * 16;
+            ranges.add(buffer.getLong(range), Math.min(buffer.getLong(range + 8), stripeLength));
+        }
+        return ranges;
+    }
+
+    private boolean shutdownSender() throws IOException {
+        System.out.println("--------------------------------------------");
+        System.out.println("Starting Network Teardown...");
+        // Create a FIN Packet and send it to the Receiver
+        System.out.println("Creating FIN Packet...");
+        timeoutVal = Math.min(calculateTimeout(), MAX_FIN_RTO);   // Not whatever backoff the data left behind
+        DatagramPacket finPacket = frameWriter.fin((int) currentSeqNum, currentAckNum);
+        senderChannel.send(finPacket);
+        printToLog(finPacket, EventLog.SND);
+        System.out.println("FIN Packet sent");
+
+        // Block while waiting for the ACK and then the Receiver FIN, which the receiver sends together. Any of the
+        // three may be lost, so our FIN is resent each time the timeout passes without the receiver's, backing off up
+        // to MAX_FIN_RTO, and the receiver answers every FIN with both again. The receiver's FIN acknowledges ours too.
+        // Once our FIN has been ACK'd the receiver has everything, so running out of retries then still counts.
+        System.out.println("Block while waiting for ACK and FIN");
+        DatagramPacket dataPacket = ackPacket;
+        packetHeader.wrap(dataPacket).setFlags(0);
+        boolean finAcked = false;
+        int retries = 0;
+        while (!checkSTPHeaderFlags(dataPacket, FIN_FLAG)) {
+            if (!senderChannel.receive(dataPacket, timeoutVal)) {
+                if (++retries > CONTROL_RETRIES) {
+                    System.out.println("No FIN received from the receiver");
+                    senderChannel.close();
+                    mappedFile.close();
+                    return finAcked;
+                }
+                timeoutVal = Math.min(timeoutVal * 2, MAX_FIN_RTO);
+                senderChannel.send(finPacket);
+                printToLog(finPacket, EventLog.RXT);
+                System.out.println("FIN Packet resent");
+            } else if (!finAcked && checkSTPHeaderFlags(dataPacket, ACK_FLAG) &&
+                    checkSTPAckNum(dataPacket, (int) currentSeqNum + 1)) {
+                finAcked = true;
+                printToLog(dataPacket, EventLog.RCV);
+                System.out.println("ACK for teardown received!");
+            }
+        }
+        currentSeqNum += HEADER_SIZE;
+        printToLog(dataPacket, EventLog.RCV);
+        System.out.println("FIN received!, sending ACK");
+
+        // Create ACK Packet for Receiver
+        DatagramPacket finAck = frameWriter.ack((int) currentSeqNum,
+                getHeaderFromPacket(dataPacket).getSequenceNum() + 1);
+        senderChannel.send(finAck);
+        printToLog(finAck, EventLog.SND);
+        System.out.println("Final ACK sent. Teardown complete");
+        System.out.println("--------------------------------------------");
+
+        senderChannel.close();
+        mappedFile.close();
+
+        return true;
+    }
+
+    private void retransmitLastPacket() throws IOException {
+        if (lastByteSent - lastByteAcked != 0) {
+            if (VERBOSE) {
+                System.out.println("Retransmitting package...");
+            }
+            long offset = lastByteAcked - initialSequenceNum - 1;
+
+            // With SACK we can resend every hole the receiver has told us about in one go. If there are no holes
+            // and the segment at the last byte acked has already been resent in this recovery then there is nothing
+            // more to do until another ACK or a timeout.
+            if (sackEnabled && (retransmitHoles() || scoreboard.getRetransmitHigh() > offset)) {
+                return;
+            }
+
+            // Rebuild the segment that starts at the last byte acked from the mapped file
+            int segmentSize = segmentLength(offset, stripeLength);
+            if (VERBOSE) {
+                System.out.println("Attempting to resend segment at offset: " + offset);
+            }
+            retransmitSegment(offset, segmentSize);
+            if (sackEnabled) {
+                scoreboard.setRetransmitHigh(offset + segmentSize);
+            }
+        }
+    }
+
+    /**
+     * Retransmits the holes in the scoreboard that haven't already been retransmitted in the current recovery, as far
+     * as the window has room for beyond what is still in the network (RFC 6675). The rest go from retransmitHigh as
+     * later ACK's make room.
+     * @return true if anything was retransmitted
+     * @throws IOException
+     */
+    private boolean retransmitHoles() throws IOException {
+        long window = Math.min(mws, congestionController.getUninflatedWindow());
+        boolean retransmitted = false;
+        long hole = scoreboard.nextHole(scoreboard.getRetransmitHigh());
+        while (hole >= 0) {
+            long holeEnd = Math.min(scoreboard.holeEnd(hole), dataSent);
+            for (long offset = hole; offset < holeEnd; ) {
+                int segmentSize = segmentLength(offset, holeEnd);
+                if (scoreboard.pipe(dataSent) + segmentSize > window) {
+                    return retransmitted;
+                }
+                retransmitSegment(offset, segmentSize);
+                offset += segmentSize;
+                scoreboard.setRetransmitHigh(offset);
+                retransmitted = true;
+            }
+            hole = scoreboard.nextHole(holeEnd);
+        }
+        return retransmitted;
+    }
+
+    /**
+     * @param offset where a segment starts
+     * @param end where the data to resend ends
+     * @return the length the segment was sent at, so that it is resent the same, or the current size if it has no
+     * slot
+     */
+    private int segmentLength(long offset, long end) {
+        long segment = offset / segmentUnit;
+        int slot = (int) (segment % slotSegment.length);
+        int length = slotSegment[slot] == segment && slotLength[slot] > 0 ? slotLength[slot] : mss;
+        return (int) Math.min(length, end - offset);
+    }
+
+    private void retransmitSegment(long offset, int segmentSize) throws IOException {
+        spanRetransmits++;
+        probeRetransmits++;
+        retransmitHighWater = Math.max(retransmitHighWater, offset + segmentSize);
+        metrics.onSegmentSent(segmentSize, true);
+        sendPacket(buildSegment(offset, segmentSize), EventLog.RXT);
+        long now = System.currentTimeMillis();
+        armRetransmissionTimer(offset, segmentSize, now);
+        congestionController.onPacketSent(now, offset + segmentSize, segmentSize, true);
+    }
+
+    /**
+     * @return the retransmission timeout for the current RTT estimates, clamped to between the minimum and maximum
+     */
+    private int calculateTimeout() {
+        return (int) Math.min(Math.max(estimatedRTT + gamma * devRTT, MIN_RTO), MAX_RTO);
+    }
+
+    /**
+     * Gives a segment a retransmission deadline one timeout from now, replacing any deadline it already had.
+     * @param offset where the segment starts
+     * @param segmentSize
+     * @param now
+     */
+    private void armRetransmissionTimer(long offset, int segmentSize, long now) {
+        int slot = claimSlot(offset / segmentUnit);
+        slotLength[slot] = segmentSize;
+        if (segmentTimeouts[slot] == null) {
+            segmentTimeouts[slot] = timerWheel.newTimeout(retransmissionTask, slot);
+        }
+        timerWheel.schedule(segmentTimeouts[slot], now, timeoutVal);
+    }
+
+    /**
+     * Hands a segment the slot its send time and retransmission deadline are kept in. Whatever segment had the slot
+     * before is a whole window behind, so has already been ACK'd and had its deadline cancelled. Segments are indexed
+     * by their offset in segmentUnits, which every segment size is a multiple of.
+     * @param segment the index of the segment
+     * @return the slot
+     */
+    private int claimSlot(long segment) {
+        int slot = (int) (segment % slotSegment.length);
+        if (slotSegment[slot] != segment) {
+            slotSegment[slot] = segment;
+            timeSegmentSent[slot] = 0;
+            slotLength[slot] = 0;
+        }
+        return slot;
+    }
+
+    /**
+     * Cancels the retransmission deadlines of the segments a cumulative ACK has just covered.
+     * @param from the old ACK point as an offset into the file
+     * @param to the new ACK point
+     */
+    private void cancelRetransmissionTimers(long from, long to) {
+        // Only the segments that have slots can have deadlines, which is no more than one pass over the slots even
+        // if the ACK jumped over data the receiver had from before
+        long first = from / segmentUnit;
+        for (long segment = first; segment < first + slotSegment.length; segment++) {
+            if (segment * segmentUnit >= to) {
+                break;
+            }
+            int slot = (int) (segment % slotSegment.length);
+            if (slotSegment[slot] == segment && segment * segmentUnit + slotLength[slot] <= to &&
+                    segmentTimeouts[slot] != null) {
+                timerWheel.cancel(segmentTimeouts[slot]);
+            }
+        }
+    }
+
+    /**
+     * Called when a segment has gone a whole timeout without being acknowledged. The timeout is doubled, the
+     * congestion controller is told, and the segment at the ACK point is resent. The deadlines of the segments after
+     * it are cancelled, since they would all pass together, and those segments are resent from the main loop as the
+     * collapsed window opens up again.
+     * @param segment
+     * @param now
+     * @throws IOException
+     */
+    private void retransmissionTimedOut(long segment, long now) throws IOException {
+        long offset = segment * segmentUnit;
+        int segmentSize = segmentLength(offset, stripeLength);
+        long ackOffset = lastByteAcked - initialSequenceNum - 1;
+        if (offset + segmentSize <= ackOffset || (sackEnabled && scoreboard.isSacked(offset, offset + segmentSize))) {
+            // The receiver already has it
+            return;
+        }
+        if (VERBOSE) {
+            System.out.println("Retransmission timeout for segment at offset: " + offset);
+        }
+
+        timeoutVal = (int) Math.min(timeoutVal * 2L, MAX_RTO);
+        if (sackEnabled) {
+            scoreboard.resetRecovery();
+        }
+        // Everything sent so far is being resent, so duplicate ACK's for it mustn't start a fast recovery
+        inRecovery = false;
+        recoveryPoint = lastByteSent;
+        congestionController.onTimeout(now, lastByteSent - lastByteAcked);
+        metrics.onTimeout(timeoutVal);
+
+        cancelRetransmissionTimers(ackOffset, dataSent);
+        int firstSize = segmentLength(ackOffset, stripeLength);
+        retransmitSegment(ackOffset, firstSize);
+        resendPoint = ackOffset + firstSize;
+        resendEnd = dataSent;
+    }
+
+    /**
+     * Brings the scoreboard up to date with the cumulative ACK and any SACK blocks in an ACK.
+     * @param stp the header of the ACK
+     */
+    private void updateScoreboard(STPHeader stp) {
+        scoreboard.acknowledge(lastByteAcked - initialSequenceNum - 1);
+        int sack = stp.findOption(STPHeader.OPTION_SACK);
+        if (sack < 0) {
+            return;
+        }
+
+        ByteBuffer buffer = stp.getBuffer();
+        int blocks = stp.getOptionLength(sack) / 8;
+        for (int i = 0; i < blocks; i++) {
+            long left = STPHeader.unwrap(buffer.getInt(sack + i * 8), lastByteAcked);
+            long right = STPHeader.unwrap(buffer.getInt(sack + i * 8 + 4), lastByteAcked);
+            scoreboard.addBlock(left - initialSequenceNum - 1, right - initialSequenceNum - 1);
+        }
+    }
+
+    private boolean checkSTPHeaderFlags(DatagramPacket packet, int flag) {
+        return getHeaderFromPacket(packet).checkFlag(flag);
+    }
+
+    private boolean checkSTPAckNum(DatagramPacket packet, int ackNum) {
+        return getHeaderFromPacket(packet).getAckNum() == ackNum;
+    }
+
+    /**
+     * Points the shared header flyweight at the packet. The returned view is only valid until the next call.
+     * @param packet
+     * @return
+     */
+    private STPHeader getHeaderFromPacket(DatagramPacket packet) {
+        return packetHeader.wrap(packet);
+    }
+
+    private void printToLog(DatagramPacket datagramPacket, int event) {
+        STPHeader header = logHeader.wrap(datagramPacket);
+        eventLog.record(event, System.currentTimeMillis() - timer, header.getFlags(), header.getSequenceNum(),
+                datagramPacket.getLength() - header.getHeaderLength(), header.getAckNum());
+    }
+
+    private void dropPackets(DatagramPacket dataPacket) {
+        printToLog(dataPacket, EventLog.DROP);
+        metrics.onPldDrop();
+        if (VERBOSE) {
+            System.out.println("PACKET DROPPED");
+        }
+    }
+
+    private void duplicatePackets(DatagramPacket dataPacket) throws IOException {
+        sendPacket(dataPacket, EventLog.SND);
+        sendPacket(dataPacket, EventLog.DUP);
+        if (VERBOSE) {
+            System.out.println("DUPLICATED");
+        }
+    }
+
+    private void sendCorruptPacket(DatagramPacket packet) throws IOException {
+        DatagramPacket dataPacket = copyPacket(packet);
+        byte[] packetData = dataPacket.getData();
+
+        // Corrupts the second byte of data by flipping all the bits
+        int payload = packetHeader.wrap(packetData).getHeaderLength();
+        packetData[payload + 1] = (byte) ~packetData[payload + 1];
+        sendPacket(dataPacket, EventLog.CORR);
+        metrics.onPldCorruption();
+        if (VERBOSE) {
+            System.out.println("CORRUPTED");
+        }
+    }
+
+    /**
+     * Builds the data segment holding the given part of the file in the reusable segment buffer. Once the channel is
+     * connected only the header is written into the buffer, and the data is left in the mapping to be sent with a
+     * gathering write, see sendPacket and copyPacket. The returned packet is overwritten by the next call, so anything
+     * that needs to hold onto it has to copy it first.
+     * @param offset where in the file the segment's data starts
+     * @param segmentSize
+     * @return
+     */
+    private DatagramPacket buildSegment(long offset, int segmentSize) {
+        // Write the STP header in place at the top of the buffer, and the data goes after it
+        gatheredSegment[1] = null;
+        dataHeader.wrap(segmentBuffer).write(false, false, false, initialSequenceNum + 1 + (int) offset, currentAckNum,
+                0);
+        if (timestampsEnabled) {
+            int timestamp = dataHeader.appendOption(STPHeader.OPTION_TIMESTAMP, STPHeader.TIMESTAMP_OPTION_LENGTH);
+            dataHeader.getBuffer().putInt(timestamp, timestamp(System.currentTimeMillis())).putInt(timestamp + 4, 0);
+        }
+        int headerLength = dataHeader.getHeaderLength();
+        int payloadLength = segmentSize;
+        if (gathering && compressor.getAlgorithm() == STPCompressor.NONE &&
+                mappedFile.isSliceable(stripeStart + offset, segmentSize)) {
+            gatheredSegment[0].limit(headerLength);
+            gatheredSegment[1] = mappedFile.slice(stripeStart + offset, segmentSize);
+            segmentPacket.setLength(headerLength + payloadLength);
+            segmentChecksum.sign(segmentPacket, gatheredSegment[1]);
+            return segmentPacket;
+        } else if (compressor.getAlgorithm() == STPCompressor.NONE) {
+            mappedFile.read(stripeStart + offset, segmentBuffer, headerLength, segmentSize);
+        } else {
+            // Send the data compressed if it comes out smaller, the sequence numbers still count the data as it is
+            mappedFile.read(stripeStart + offset, rawSegment, 0, segmentSize);
+            int compressed = compressor.compress(rawSegment, 0, segmentSize, segmentBuffer, headerLength);
+            if (compressed >= 0) {
+                dataHeader.setFlags(dataHeader.getFlags() | (1 << STPHeader.COMPRESSED_FLAG));
+                payloadLength = compressed;
+            } else {
+                System.arraycopy(rawSegment, 0, segmentBuffer, headerLength, segmentSize);
+            }
+        }
+
+        // Calculate and add the checksum to the header before sending
+        segmentPacket.setLength(headerLength + payloadLength);
+        long checksum = segmentChecksum.sign(segmentPacket);
+        if (VERBOSE) {
+            System.out.println("Checksum calculated as " + checksum);
+        }
+
+        return segmentPacket;
+    }
+
+    /**
+     * Copies a packet so that the PLD can hold onto it after the segment buffer has been reused.
+     * @param packet
+     * @return
+     */
+    private DatagramPacket copyPacket(DatagramPacket packet) {
+        byte[] packetData = new byte[packet.getLength()];
+        if (packet == segmentPacket && gatheredSegment[1] != null) {
+            // The header from the buffer and the data from the mapping
+            int headerLength = gatheredSegment[0].limit();
+            System.arraycopy(segmentBuffer, 0, packetData, 0, headerLength);
+            gatheredSegment[1].duplicate().get(packetData, headerLength, packetData.length - headerLength);
+        } else {
+            System.arraycopy(packet.getData(), packet.getOffset(), packetData, 0, packetData.length);
+        }
+        return new DatagramPacket(packetData, packetData.length, packet.getAddress(), packet.getPort());
+    }
+
+    private void reorderPacket(DatagramPacket packet) throws IOException {
+        // First check if there is a packet already being reordered, if there is then send it first and then replace
+        // it with the new reordered packet
+        if (reorderedPacket != null) {
+            senderChannel.send(reorderedPacket);
+            printToLog(reorderedPacket, EventLog.RORD);
+            forwardingCount = 0;
+        }
+        reorderedPacket = copyPacket(packet);
+    }
+
+    private void sendPacket(DatagramPacket packet, int event) throws IOException {
+        // Sends the packet and increments forwarding count only if there is a packet saved
+        if (packet == segmentPacket && gatheredSegment[1] != null) {
+            gatheredSegment[0].position(0);
+            gatheredSegment[1].position(0);
+            senderChannel.write(gatheredSegment);
+        } else {
+            senderChannel.send(packet);
+        }
+        printToLog(packet, event);
+
+        if (reorderedPacket != null) {
+            forwardingCount++;
+        }
+
+        // Checks if the forwardingCount has reached maxOrder. If it has reached maxOrder then we also send the
+        // reordered Packet and reset the reorderedPacket to null.
+        if (forwardingCount == maxOrder && maxOrder != 0) {
+            senderChannel.send(reorderedPacket);
+            printToLog(reorderedPacket, EventLog.RORD);
+            forwardingCount = 0;
+            reorderedPacket = null;
+        }
+    }
+
+    private void delayPacket(DatagramPacket packet) {
+        final DatagramPacket datagramPacket = copyPacket(packet);
+
+        // Generate a random delay between 0 and maxDelay
+        long x = 0;
+        long y = maxDelay;
+        long randomDelay = x + ((long)(randomGenerator.nextDouble()*(y-x)));
+
+        // Schedule the task of sending the delayed packet on the timer wheel
+        TimerWheel.Task task = new TimerWheel.Task() {
+            @Override
+            public void expire(TimerWheel.Timeout timeout, long now) throws IOException {
+                sendPacket(datagramPacket, EventLog.DELY);
+            }
+        };
+        timerWheel.schedule(task, 0, System.currentTimeMillis(), randomDelay);
+    }
+
+    private void pldModule(DatagramPacket dataPacket) throws IOException {
+        // PLD module
+        switch (pld.decide()) {
+            case EventLog.DROP:
+                dropPackets(dataPacket);
+                break;
+            case EventLog.DUP:
+                duplicatePackets(dataPacket);
+                break;
+            case EventLog.CORR:
+                sendCorruptPacket(dataPacket);
+                break;
+            case EventLog.RORD:
+                reorderPacket(dataPacket);
+                break;
+            case EventLog.DELY:
+                delayPacket(dataPacket);
+                break;
+            default:
+                sendPacket(dataPacket, EventLog.SND);
+        }
+    }
+
+    private long storePacket(long segment) {
+        // Note the time that the packet was first sent. The packet itself isn't kept since retransmissions are rebuilt
+        // from the mapped file.
+        int slot = claimSlot(segment);
+        timeSegmentSent[slot] = System.currentTimeMillis();
+        if (VERBOSE) {
+            System.out.println("Packet sent time stored in slot " + slot);
+        }
+        return timeSegmentSent[slot];
+    }
+
+}
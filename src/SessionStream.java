@@ -0,0 +1,178 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The data of a session, which sends many files over one connection so that they share one handshake, one teardown,
+ * and the RTT estimate and congestion window built up along the way.
+ *
+ * Each file is a record in one stream of data: its header, then its data. The header is the file's id, its length, and
+ * the length and UTF-8 bytes of its name. The files are numbered from 1 in the order they are sent. Segments are cut
+ * from the stream without regard to where files start and end, so a segment may hold the ends of several small files.
+ *
+ * The sender joins the headers and the mapped files into one MappedFile, see open(). The receiver is handed the stream
+ * in order by the reassembly buffer and writes each file into its directory under the file's name as it goes. Names
+ * that would land outside the directory are cut down to their last part.
+ */
+public class SessionStream implements ReassemblyBuffer.Sink, Closeable {
+    public static final int HEADER_SIZE = 14;       // Before the name: file id, length and name length
+    private static final int MAX_NAME = 0xFFFF;
+    private static final boolean VERBOSE = Boolean.getBoolean("stp.verbose");
+
+    private final File directory;
+    private final byte[] header = new byte[HEADER_SIZE + MAX_NAME];
+    private int headerLength;           // How much of the current file's header has arrived
+    private int fileId;
+    private long remaining;             // Bytes of the current file still to come, -1 while reading its header
+    private File file;
+    private FileOutputStream output;
+    private int filesReceived;
+    private long bytesReceived;
+
+    /**
+     * @param directory where received files go, created if need be
+     * @throws IOException
+     */
+    public SessionStream(String directory) throws IOException {
+        this.directory = new File(directory).getCanonicalFile();
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        this.remaining = -1;
+    }
+
+    /**
+     * Lays out the stream of a session for the sender.
+     * @param files the files to send
+     * @param names what the receiver calls each one, relative to its directory
+     * @return the stream, read like a file
+     * @throws IOException
+     */
+    public static MappedFile open(List<File> files, List<String> names) throws IOException {
+        List<ByteBuffer> pieces = new ArrayList<>(files.size() * 2);
+        for (int i = 0; i < files.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_NAME) {
+                throw new IOException("Name too long: " + names.get(i));
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + name.length);
+            header.putInt(i + 1).putLong(files.get(i).length()).putShort((short) name.length).put(name).flip();
+            pieces.add(header);
+            MappedFile.map(files.get(i), pieces);
+        }
+        return MappedFile.join(pieces);
+    }
+
+    @Override
+    public void deliver(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (remaining < 0) {
+                offset = readHeader(data, offset, end);
+                continue;
+            }
+            int write = (int) Math.min(remaining, end - offset);
+            output.write(data, offset, write);
+            offset += write;
+            remaining -= write;
+            bytesReceived += write;
+            if (remaining == 0) {
+                finishFile();
+            }
+        }
+    }
+
+    /**
+     * Takes in as much of the current file's header as there is, and opens the file once the header is complete.
+     * @return where the header ends in the data, or the end of the data if the header carries on past it
+     */
+    private int readHeader(byte[] data, int offset, int end) throws IOException {
+        // The fixed part first, then the name once its length is known
+        int copy = Math.min((headerLength < HEADER_SIZE ? HEADER_SIZE : HEADER_SIZE + nameLength()) - headerLength,
+                end - offset);
+        System.arraycopy(data, offset, header, headerLength, copy);
+        headerLength += copy;
+        offset += copy;
+        if (headerLength < HEADER_SIZE || headerLength < HEADER_SIZE + nameLength()) {
+            return offset;
+        }
+
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        fileId = fields.getInt(0);
+        long fileLength = fields.getLong(4);
+        String name = new String(header, HEADER_SIZE, headerLength - HEADER_SIZE, StandardCharsets.UTF_8);
+        if (fileLength < 0) {
+            throw new IOException("File " + fileId + " has a negative length");
+        }
+        file = target(name);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent);
+        }
+        output = new FileOutputStream(file);
+        headerLength = 0;
+        remaining = fileLength;
+        if (remaining == 0) {
+            finishFile();
+        }
+        return offset;
+    }
+
+    private int nameLength() {
+        return (header[HEADER_SIZE - 2] & 0xFF) << 8 | (header[HEADER_SIZE - 1] & 0xFF);
+    }
+
+    /**
+     * @param name as the sender gave it
+     * @return where in the directory the file goes
+     */
+    private File target(String name) throws IOException {
+        File target = new File(directory, name).getCanonicalFile();
+        if (!target.toPath().startsWith(directory.toPath()) || target.equals(directory)) {
+            String last = new File(name).getName();
+            boolean unnamed = last.isEmpty() || last.equals(".") || last.equals("..");
+            target = new File(directory, unnamed ? "file-" + fileId : last);
+        }
+        return target;
+    }
+
+    private void finishFile() throws IOException {
+        output.close();
+        output = null;
+        filesReceived++;
+        remaining = -1;
+        if (VERBOSE) {
+            System.out.println("Received file " + fileId + ": " + file);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getFilesReceived() {
+        return filesReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Closes the file being written, if the session ended part way through one.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+            System.out.println("File " + fileId + " cut short: " + file);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file arriving as several stripes over separate STP connections. Each stripe's session writes its own range of the
+ * one file through its own FileSegmentWriter, and the transfer is finished once every stripe's session has closed.
+ *
+ * Stripe sessions of the same transfer may be handled by different threads.
+ */
+public class StripedTransfer {
+    private final long id;
+    private final String fileName;
+    private final long fileLength;
+    private final int stripes;
+    private final AtomicInteger stripesRemaining;
+    private boolean created;        // Whether the file has been created at its full length
+
+    /**
+     * @param id the transfer id the sender put on every stripe's SYN
+     * @param fileName the file the stripes are written into
+     * @param fileLength
+     * @param stripes the number of stripes the sender split the file into
+     */
+    public StripedTransfer(long id, String fileName, long fileLength, int stripes) {
+        this.id = id;
+        this.fileName = fileName;
+        this.fileLength = fileLength;
+        this.stripes = stripes;
+        this.stripesRemaining = new AtomicInteger(stripes);
+    }
+
+    /**
+     * Opens a writer for the stripe starting at stripeStart. The first stripe to arrive creates the file, emptying
+     * anything that was there before.
+     * @param stripeStart
+     * @return
+     * @throws IOException
+     */
+    public FileSegmentWriter openStripe(long stripeStart) throws IOException {
+        synchronized (this) {
+            if (!created) {
+                try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                    file.setLength(0);
+                    file.setLength(fileLength);
+                }
+                created = true;
+            }
+        }
+        return FileSegmentWriter.fromSystemProperties(fileName, stripeStart, false);
+    }
+
+    /**
+     * Notes that one stripe's session has finished.
+     * @return true if it was the last stripe
+     */
+    public boolean stripeFinished() {
+        return stripesRemaining.decrementAndGet() == 0;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+
+/**
+ * A hashed timer wheel. Time is cut into ticks and each timeout is hashed into the bucket for the tick it is due in,
+ * along with the number of whole turns of the wheel it still has to wait, so scheduling and cancelling a timeout are
+ * O(1) no matter how many are pending.
+ *
+ * The wheel has no thread of its own. Its owner calls advance() from its loop, and expired tasks run on that thread,
+ * so they need no locking. timeUntilNextExpiry() tells the owner how long it can block before the next task is due.
+ */
+public class TimerWheel {
+
+    /**
+     * Work to do when a timeout expires.
+     */
+    public interface Task {
+        void expire(Timeout timeout, long now) throws IOException;
+    }
+
+    /**
+     * A scheduled task. Timeouts can be rescheduled once they've expired or been cancelled, so a caller that
+     * repeatedly times the same thing keeps one Timeout for it rather than allocating a new one each time.
+     */
+    public static final class Timeout {
+        private static final int IDLE = -1;
+        private static final int EXPIRING = -2;
+
+        private final Task task;
+        private final long id;      // Whatever the owner uses to tell its timeouts apart
+        private long deadline;
+        private long rounds;        // Turns of the wheel left before this is due
+        private int bucket = IDLE;
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextDue;    // Links the timeouts taken out of a bucket to be run
+
+        private Timeout(Task task, long id) {
+            this.task = task;
+            this.id = id;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isPending() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private long currentTick;       // The next tick that advance() will process
+    private int pending;
+
+    /**
+     * @param tickMillis the length of a tick in ms, timeouts fire on the first tick at or after their deadline
+     * @param size the number of buckets, rounded up to a power of two
+     * @param now
+     */
+    public TimerWheel(long tickMillis, int size, long now) {
+        this.tickMillis = tickMillis;
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        this.buckets = new Timeout[capacity];
+        this.mask = capacity - 1;
+        this.currentTick = now / tickMillis;
+    }
+
+    public Timeout newTimeout(Task task, long id) {
+        return new Timeout(task, id);
+    }
+
+    public Timeout schedule(Task task, long id, long now, long delay) {
+        Timeout timeout = newTimeout(task, id);
+        schedule(timeout, now, delay);
+        return timeout;
+    }
+
+    /**
+     * Schedules a timeout, moving it if it is already pending.
+     * @param timeout
+     * @param now
+     * @param delay ms from now
+     */
+    public void schedule(Timeout timeout, long now, long delay) {
+        cancel(timeout);
+
+        timeout.deadline = now + Math.max(delay, 0);
+        // Round up so that a timeout never fires before its deadline
+        long tick = Math.max((timeout.deadline + tickMillis - 1) / tickMillis, currentTick);
+        timeout.rounds = (tick - currentTick) / buckets.length;
+        timeout.bucket = (int) (tick & mask);
+
+        timeout.prev = null;
+        timeout.next = buckets[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        pending++;
+    }
+
+    /**
+     * @param timeout
+     * @return true if the timeout was pending and now won't fire
+     */
+    public boolean cancel(Timeout timeout) {
+        if (timeout.bucket == Timeout.EXPIRING) {
+            timeout.bucket = Timeout.IDLE;
+            return true;
+        }
+        if (timeout.bucket == Timeout.IDLE) {
+            return false;
+        }
+        unlink(timeout);
+        timeout.bucket = Timeout.IDLE;
+        return true;
+    }
+
+    /**
+     * Runs every task whose deadline has passed.
+     * @param now
+     * @return the number of tasks run
+     * @throws IOException if a task throws
+     */
+    public int advance(long now) throws IOException {
+        long nowTick = now / tickMillis;
+        if (pending == 0) {
+            currentTick = Math.max(currentTick, nowTick + 1);
+            return 0;
+        }
+
+        int expired = 0;
+        while (currentTick <= nowTick) {
+            // Take the due timeouts out of the bucket before running any of them, since a task may schedule or cancel
+            // other timeouts in the same bucket
+            Timeout due = null;
+            int bucket = (int) (currentTick & mask);
+            Timeout timeout = buckets[bucket];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds == 0) {
+                    unlink(timeout);
+                    timeout.bucket = Timeout.EXPIRING;
+                    timeout.nextDue = due;
+                    due = timeout;
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+            currentTick++;
+
+            while (due != null) {
+                Timeout next = due.nextDue;
+                due.nextDue = null;
+                // Skip it if an earlier task cancelled it
+                if (due.bucket == Timeout.EXPIRING) {
+                    due.bucket = Timeout.IDLE;
+                    due.task.expire(due, now);
+                    expired++;
+                }
+                due = next;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @param now
+     * @return ms until the next timeout is due, 0 if one is already due, or -1 if nothing is pending
+     */
+    public long timeUntilNextExpiry(long now) {
+        if (pending == 0) {
+            return -1;
+        }
+
+        // Look one turn of the wheel ahead for the first bucket holding a timeout that is due this turn
+        for (int i = 0; i < buckets.length; i++) {
+            long tick = currentTick + i;
+            for (Timeout timeout = buckets[(int) (tick & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.rounds == 0) {
+                    return Math.max(tick * tickMillis - now, 0);
+                }
+            }
+        }
+        // Nothing is due this turn, come back at the end of it
+        return Math.max((currentTick + buckets.length) * tickMillis - now, 0);
+    }
+
+    public int size() {
+        return pending;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        pending--;
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * What a receiver has committed to disk of a file, kept next to the file as file.resume so that a transfer cut short
+ * by either side dying can carry on from where it got to rather than from the start.
+ *
+ * The file is identified by its length and a hash of its contents, which the sender puts on its SYN. A receiver that
+ * has a checkpoint for the same file echoes the ranges it already holds on its SYNACK, and the sender skips them.
+ *
+ * A checkpoint only ever lists data that has been forced out to the file, and is replaced whole when it is saved, so
+ * one left behind by a crash never claims more than the file holds.
+ */
+public class TransferCheckpoint {
+    public static final int HASH_SIZE = 16;
+
+    private static final int MAGIC = 0x53545052;    // STPR
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".resume";
+    private static final int HASH_CHUNK = 1 << 15;    // Within the largest slice MappedFile hands out
+    private static final int HEADER_SIZE = 36;        // Magic, version, file length, hash and range count
+
+    private final long fileLength;
+    private final byte[] hash;
+    private final RangeSet ranges;
+
+    /**
+     * @param fileLength
+     * @param hash
+     * @param ranges the offsets of the file that are on disk
+     */
+    public TransferCheckpoint(long fileLength, byte[] hash, RangeSet ranges) {
+        this.fileLength = fileLength;
+        this.hash = hash;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Hashes a whole file, reading it a chunk at a time straight out of the mapping.
+     * @param file
+     * @return the first HASH_SIZE bytes of its SHA-256
+     */
+    public static byte[] hash(MappedFile file) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to have SHA-256
+            throw new IllegalStateException(e);
+        }
+        for (long offset = 0; offset < file.length(); offset += HASH_CHUNK) {
+            digest.update(file.slice(offset, (int) Math.min(HASH_CHUNK, file.length() - offset)));
+        }
+        return Arrays.copyOf(digest.digest(), HASH_SIZE);
+    }
+
+    /**
+     * @param fileName the received file
+     * @return its checkpoint, or null if it has none or the checkpoint can't be read
+     */
+    public static TransferCheckpoint load(String fileName) {
+        File file = new File(fileName + SUFFIX);
+        if (!file.isFile() || !new File(fileName).isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long fileLength = in.readLong();
+            byte[] hash = new byte[HASH_SIZE];
+            in.readFully(hash);
+            int count = in.readInt();
+            // Anything the checkpoint couldn't have been saved with means it's damaged, so don't trust any of it
+            if (fileLength < 0 || count < 0 || count > (file.length() - HEADER_SIZE) / 16) {
+                return null;
+            }
+            RangeSet ranges = new RangeSet(Math.max(count, 1));
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                if (start < 0 || start >= end || end > fileLength) {
+                    return null;
+                }
+                ranges.add(start, end);
+            }
+            return new TransferCheckpoint(fileLength, hash, ranges);
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable checkpoint " + file);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the received file's checkpoint with this one.
+     * @param fileName the received file
+     * @throws IOException
+     */
+    public void save(String fileName) throws IOException {
+        File file = new File(fileName + SUFFIX);
+        File temporary = new File(fileName + SUFFIX + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.write(hash);
+            out.writeInt(ranges.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                out.writeLong(ranges.getStart(i));
+                out.writeLong(ranges.getEnd(i));
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the received file's checkpoint, if it has one.
+     * @param fileName the received file
+     */
+    public static void delete(String fileName) {
+        new File(fileName + SUFFIX).delete();
+    }
+
+    /**
+     * @param fileLength
+     * @param hash
+     * @return whether this is a checkpoint of the file with the given length and hash
+     */
+    public boolean matches(long fileLength, byte[] hash) {
+        return this.fileLength == fileLength && Arrays.equals(this.hash, hash);
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public RangeSet getRanges() {
+        return ranges;
+    }
+}